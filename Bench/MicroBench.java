@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+// Microbenchmarks for the codec, compute and hex paths and the server's per-request path, with
+// per-operation allocation.
+//
+// Each benchmark is warmed up, then timed over several fixed-length iterations on one thread.
+// Allocation is read from the JVM's per-thread allocated-bytes counter (the same source JMH's
+// gc.alloc.rate.norm uses), so "B/op" is exact bytes allocated per call.
+//
+// Benchmarks that must stay garbage-free carry an allocation budget; with --check the run exits
+// non-zero if any budget is exceeded, so allocation regressions fail a build script. The
+// serverTCP.* benchmarks run at -Dcalc.log=info unless told otherwise: at the default level every
+// request would be formatted and queued to the console, which is not what they measure.
+//
+//   javac -d out -sourcepath TCP Common/*.java Bench/*.java
+//   java -cp out MicroBench [--check] [regex]         e.g.  java -cp out MicroBench 'request\..*'
+//   -Dbench.warmup=1 -Dbench.iterations=5 -Dbench.seconds=1
+public final class MicroBench {
+    private static final double WARMUP_SECONDS = Double.parseDouble(System.getProperty("bench.warmup", "1"));
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final double ITER_SECONDS = Double.parseDouble(System.getProperty("bench.seconds", "1"));
+    private static final long NO_BUDGET = Long.MAX_VALUE;
+
+    // Keeps results alive so the JIT cannot discard the benchmarked work.
+    static volatile long sink;
+
+    interface Op {
+        long run(int i);
+    }
+
+    private static final class Bench {
+        final String name;
+        final long budgetBytes;
+        final Op op;
+
+        Bench(String name, long budgetBytes, Op op) {
+            this.name = name;
+            this.budgetBytes = budgetBytes;
+            this.op = op;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty("calc.log") == null) System.setProperty("calc.log", "info"); // before Log loads
+        boolean check = false;
+        Pattern filter = Pattern.compile(".*");
+        for (String a : args) {
+            if (a.equals("--check")) check = true;
+            else filter = Pattern.compile(a);
+        }
+
+        int failures = 0;
+        System.out.printf(Locale.US, "%-26s %14s %12s %10s%n", "benchmark", "ops/s", "± (stdev)", "B/op");
+        for (Bench b : benchmarks()) {
+            if (!filter.matcher(b.name).matches()) continue;
+            double[] r = measure(b.op);
+            boolean over = r[2] > b.budgetBytes + 0.5;
+            if (over) failures++;
+            System.out.printf(Locale.US, "%-26s %,14.0f %12.0f %10.1f%s%n", b.name, r[0], r[1], r[2],
+                    over ? "   ALLOCATION REGRESSION (budget " + b.budgetBytes + " B/op)" : "");
+        }
+        if (check && failures > 0) {
+            System.err.println(failures + " benchmark(s) over their allocation budget");
+            System.exit(1);
+        }
+    }
+
+    // Returns {mean ops/s, stdev ops/s, bytes/op}
+    private static double[] measure(Op op) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        runFor(op, WARMUP_SECONDS);
+
+        double[] rates = new double[ITERATIONS];
+        long totalOps = 0, totalBytes = 0;
+        for (int it = 0; it < ITERATIONS; it++) {
+            long bytes0 = mx.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            long ops = runFor(op, ITER_SECONDS);
+            long t1 = System.nanoTime();
+            totalBytes += mx.getThreadAllocatedBytes(tid) - bytes0;
+            totalOps += ops;
+            rates[it] = ops / ((t1 - t0) / 1e9);
+        }
+        double mean = 0;
+        for (double r : rates) mean += r;
+        mean /= rates.length;
+        double var = 0;
+        for (double r : rates) var += (r - mean) * (r - mean);
+        return new double[]{mean, Math.sqrt(var / rates.length), totalBytes / (double) totalOps};
+    }
+
+    // Calls op in batches of 1024 until the time is up; returns the number of calls.
+    private static long runFor(Op op, double seconds) {
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long ops = 0;
+        long acc = 0;
+        do {
+            for (int i = 0; i < 1024; i++) acc += op.run(i);
+            ops += 1024;
+        } while (System.nanoTime() < end);
+        sink = acc;
+        return ops;
+    }
+
+    private static List<Bench> benchmarks() {
+        List<Bench> list = new ArrayList<>();
+
+        // Sample traffic: one encoded request per opcode, as clients send them
+        byte[][] requests = new byte[6][];
+        for (int op = 0; op < 6; op++) {
+            requests[op] = Request.build((byte) op, 1_000 + op, 7 + op, (short) op).toByteArray();
+        }
+        ByteBuffer[] requestBufs = new ByteBuffer[6];
+        for (int op = 0; op < 6; op++) {
+            requestBufs[op] = ByteBuffer.allocateDirect(requests[op].length).put(requests[op]).flip();
+        }
+        byte[] response = Response.ok(42, (short) 7).toByteArray();
+        ByteBuffer out = ByteBuffer.allocateDirect(256);
+        RequestView view = new RequestView();
+        StringBuilder sb = new StringBuilder(256);
+
+        list.add(new Bench("request.parse", NO_BUDGET, i -> {
+            byte[] r = requests[i % 6];
+            Request req = Request.parse(r, r.length);
+            return req.operand1 + req.opName.length;
+        }));
+        list.add(new Bench("request.opNameString", NO_BUDGET, i -> {
+            byte[] r = requests[i % 6];
+            return Request.parse(r, r.length).opNameString().length();
+        }));
+        list.add(new Bench("request.buildToByteArray", NO_BUDGET, i ->
+                Request.build((byte) (i % 6), i, 3, (short) i).toByteArray().length));
+        list.add(new Bench("request.encode", 0, i -> {
+            out.clear();
+            Request.encode(out, (byte) (i % 6), i, 3, (short) i);
+            return out.position();
+        }));
+        list.add(new Bench("requestView.wrap", 0, i -> {
+            view.wrap(requestBufs[i % 6]);
+            return view.operand1() + view.operand2() + view.requestId();
+        }));
+        ByteBuffer[] compactBufs = new ByteBuffer[6];
+        for (int op = 0; op < 6; op++) {
+            compactBufs[op] = ByteBuffer.allocateDirect(CompactRequest.LENGTH);
+            CompactRequest.encode(compactBufs[op], (byte) op, 1_000 + op, 7 + op, (short) op);
+            compactBufs[op].flip();
+        }
+        list.add(new Bench("compactRequest.encode", 0, i -> {
+            out.clear();
+            CompactRequest.encode(out, (byte) (i % 6), i, 3, (short) i);
+            return out.position();
+        }));
+        list.add(new Bench("requestView.wrapCompact", 0, i -> {
+            view.wrap(compactBufs[i % 6]);
+            return view.operand1() + view.operand2() + view.requestId();
+        }));
+        list.add(new Bench("response.parse", NO_BUDGET, i -> Response.parse(response, response.length).result));
+        list.add(new Bench("response.toByteArray", NO_BUDGET, i -> Response.ok(i, (short) i).toByteArray().length));
+        list.add(new Bench("response.encode", 0, i -> {
+            out.clear();
+            Response.encode(out, i, (byte) 0, (short) i);
+            return out.position();
+        }));
+
+        // TCP request decoding: the hand-rolled shifts ServerTCP.handleClient used to do, versus
+        // the shared FrameDecoder + RequestView path it uses now.
+        list.add(new Bench("tcp.legacyDecode", NO_BUDGET, i -> legacyTcpDecode(requests[i % 6])));
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer stream = ByteBuffer.allocate(4096);
+        for (int k = 0; stream.remaining() >= 64; k++) stream.put(requests[k % 6]);
+        stream.flip();
+        ReadableByteChannel socket = loopingChannel(stream);
+        list.add(new Bench("tcp.frameDecode", 0, i -> {
+            ByteBuffer frame = nextFrame(decoder, socket);
+            view.wrap(frame);
+            return view.operand1() + view.opNameLen();
+        }));
+
+        list.add(new Bench("compute.tcpRules", 0, i -> Calculator.TCP_RULES.apply(i % 6, i, (i & 7) + 1)));
+        list.add(new Bench("compute.udpRules", 0, i -> Calculator.UDP_RULES.apply(i % 6, i, i & 7)));
+
+        // Result cache: an uncached opcode must cost what Calculator.apply does; a cached one is a
+        // hit on a small working set, or a miss+insert on ever-new operands.
+        ResultCache cache = new ResultCache(Calculator.TCP_RULES, 1 << 16, 1L << 5);
+        list.add(new Bench("compute.divide", 0, i -> Calculator.TCP_RULES.apply(5, i, (i & 7) + 1)));
+        list.add(new Bench("cache.bypassAdd", 0, i -> cache.apply(1, i, (i & 7) + 1)));
+        list.add(new Bench("cache.hitDivide", 0, i -> cache.apply(5, i & 255, (i & 7) + 1)));
+        int[] fresh = {0};
+        list.add(new Bench("cache.missDivide", 0, i -> cache.apply(5, fresh[0]++, 3)));
+
+        // 27 additions: one at a time through apply(), versus one uniform applyAll() batch, versus
+        // the full vector-frame server path (decode + evaluate + encode reply).
+        int n = VectorFrame.MAX_ITEMS;
+        int[] vops = new int[n], va = new int[n], vb = new int[n], vres = new int[n];
+        byte[] verr = new byte[n], wireOps = new byte[n];
+        for (int k = 0; k < n; k++) {
+            vops[k] = 1;
+            wireOps[k] = 1;
+            va[k] = 1_000 * k;
+            vb[k] = 7 + k;
+        }
+        list.add(new Bench("compute.scalarLoop27", 0, i -> {
+            long acc = 0;
+            for (int k = 0; k < n; k++) acc += Calculator.result(Calculator.TCP_RULES.apply(vops[k], va[k] + i, vb[k]));
+            return acc;
+        }));
+        list.add(new Bench("compute.applyAll27", 0, i -> {
+            va[0] = i;
+            Calculator.TCP_RULES.applyAll(vops, va, vb, n, vres, verr);
+            return vres[n - 1];
+        }));
+        ByteBuffer vecRequest = ByteBuffer.allocateDirect(256);
+        VectorFrame.encodeRequest(vecRequest, (short) 1, wireOps, va, vb, n);
+        vecRequest.flip();
+        VectorFrame vec = new VectorFrame();
+        list.add(new Bench("vectorFrame.serve27", 0, i -> {
+            vec.decodeRequest(vecRequest);
+            vec.evaluate(Calculator.TCP_RULES);
+            out.clear();
+            vec.encodeReply(out);
+            return out.position();
+        }));
+
+        // Everything ServerTCP.serve does per request (decode, compute, encode, metrics, and the
+        // JFR stage events, which without a recording must be scalar-replaced to nothing)
+        InetSocketAddress remote = new InetSocketAddress(InetAddress.getLoopbackAddress(), 10023);
+        list.add(new Bench("serverTCP.serve", 0, i -> {
+            out.clear();
+            ServerTCP.serve(requestBufs[i % 6], out, view, vec, sb, 1, remote);
+            return out.position();
+        }));
+        list.add(new Bench("serverTCP.serveVector27", 0, i -> {
+            out.clear();
+            ServerTCP.serve(vecRequest, out, view, vec, sb, 1, remote);
+            return out.position();
+        }));
+
+        // Send path: a fresh direct buffer per reply, versus a lease from the warm pool
+        list.add(new Bench("buffer.allocateDirect", NO_BUDGET, i -> {
+            ByteBuffer b = ByteBuffer.allocateDirect(1024);
+            Response.encode(b, i, (byte) 0, (short) i);
+            return b.position();
+        }));
+        BufferPool pool = new BufferPool(64, false);
+        list.add(new Bench("bufferPool.acquireRelease", 0, i -> {
+            BufferPool.Lease lease = pool.acquire(1024);
+            Response.encode(lease.buffer, i, (byte) 0, (short) i);
+            int written = lease.buffer.position();
+            lease.release();
+            return written;
+        }));
+
+        byte[] dump = requests[4];
+        list.add(new Bench("hex.legacyFormat", NO_BUDGET, i -> legacyHex(dump).length()));
+        list.add(new Bench("hex.toHex", NO_BUDGET, i -> Hex.toHex(dump, dump.length).length()));
+        ByteBuffer dumpBuf = ByteBuffer.wrap(dump);
+        list.add(new Bench("hex.appendHex", 0, i -> {
+            sb.setLength(0);
+            return Hex.appendHex(sb, dumpBuf).length();
+        }));
+        return list;
+    }
+
+    // An in-memory "socket" that replays the same request stream forever, in whatever chunk size
+    // the reader asks for. Allocation-free so it does not pollute the decoder's B/op.
+    private static ReadableByteChannel loopingChannel(ByteBuffer stream) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!stream.hasRemaining()) stream.rewind();
+                int n = Math.min(dst.remaining(), stream.remaining());
+                int limit = stream.limit();
+                stream.limit(stream.position() + n);
+                dst.put(stream);
+                stream.limit(limit);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() { return true; }
+
+            @Override
+            public void close() { }
+        };
+    }
+
+    private static ByteBuffer nextFrame(FrameDecoder decoder, ReadableByteChannel ch) {
+        try {
+            ByteBuffer frame;
+            while ((frame = decoder.next()) == null) decoder.read(ch);
+            return frame;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Verbatim shape of the pre-codec ServerTCP.handleClient decode, kept as the baseline.
+    private static long legacyTcpDecode(byte[] wire) {
+        int tml = wire[0] & 0xFF;
+        byte[] rest = new byte[tml - 1];
+        System.arraycopy(wire, 1, rest, 0, rest.length);
+        byte[] full = new byte[tml];
+        full[0] = (byte) tml;
+        System.arraycopy(rest, 0, full, 1, rest.length);
+        int opCode = full[1] & 0xFF;
+        int op1 = ((full[2] & 0xFF) << 24) | ((full[3] & 0xFF) << 16) | ((full[4] & 0xFF) << 8) | (full[5] & 0xFF);
+        int op2 = ((full[6] & 0xFF) << 24) | ((full[7] & 0xFF) << 16) | ((full[8] & 0xFF) << 8) | (full[9] & 0xFF);
+        int reqId = ((full[10] & 0xFF) << 8) | (full[11] & 0xFF);
+        int nameLen = full[12] & 0xFF;
+        byte[] nameBytes = new byte[nameLen];
+        System.arraycopy(full, 13, nameBytes, 0, nameLen);
+        byte[] be = new byte[nameLen - 2];
+        System.arraycopy(nameBytes, 2, be, 0, nameLen - 2);
+        String opName = new String(be, StandardCharsets.UTF_16BE);
+        return opCode + op1 + op2 + reqId + opName.length();
+    }
+
+    // The per-byte String.format hex dump both servers used before Hex became table-driven.
+    private static String legacyHex(byte[] arr) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < arr.length; i++) {
+            sb.append(String.format("%02X", arr[i]));
+            if (i < arr.length - 1) sb.append(' ');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+// Offline latency breakdown from a flight recording of the servers' stage events (RequestEvents).
+//
+// Reads every calc.* event in the .jfr file and prints, per stage in request order, the number
+// of events, latency percentiles in microseconds and the stage's share of all time recorded.
+// With --by-op, the per-request stages are split further by opcode (128 = vector request).
+//
+//   java -XX:StartFlightRecording:filename=calc.jfr -Dcalc.log=info -cp out ServerTCP ServerTCP 10023 nio
+//   javac -d out -sourcepath TCP Common/*.java Bench/*.java
+//   java -cp out StageReport calc.jfr [--by-op]
+public final class StageReport {
+    private static final String[] STAGES = {"Receive", "Decode", "Compute", "Log", "Encode", "Send"};
+    private static final int ALL = Integer.MIN_VALUE; // opcode key when not split by opcode
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("--by-op"))) {
+            System.err.println("Usage: java StageReport <recording.jfr> [--by-op]");
+            System.exit(1);
+        }
+        boolean byOp = args.length == 2;
+
+        // stage -> opcode -> durations (ns); stages kept in request order
+        Map<String, Map<Integer, LatencyHistogram>> stages = new LinkedHashMap<>();
+        for (String s : STAGES) stages.put(s, new TreeMap<>());
+        long events = 0;
+        try (RecordingFile recording = new RecordingFile(Path.of(args[0]))) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent e = recording.readEvent();
+                String name = e.getEventType().getName();
+                if (!name.startsWith("calc.")) continue;
+                Map<Integer, LatencyHistogram> byOpCode = stages.get(name.substring("calc.".length()));
+                if (byOpCode == null) continue; // not a stage event
+                int op = byOp && e.getInt("opCode") >= 0 ? e.getInt("opCode") : ALL;
+                byOpCode.computeIfAbsent(op, k -> new LatencyHistogram()).record(e.getDuration().toNanos());
+                events++;
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read " + args[0] + ": " + e.getMessage());
+            System.exit(1);
+        }
+        if (events == 0) {
+            System.err.println("No calc.* stage events in " + args[0]
+                    + " (was the recording running while requests were served?)");
+            System.exit(1);
+        }
+
+        double totalNanos = 0;
+        for (Map<Integer, LatencyHistogram> m : stages.values()) {
+            for (LatencyHistogram h : m.values()) totalNanos += h.mean() * h.count();
+        }
+        System.out.printf(Locale.US, "%-16s %10s %9s %9s %9s %9s %10s %9s %7s%n",
+                "stage (µs)", "events", "p50", "p90", "p99", "p99.9", "max", "mean", "share");
+        for (Map.Entry<String, Map<Integer, LatencyHistogram>> stage : stages.entrySet()) {
+            for (Map.Entry<Integer, LatencyHistogram> e : stage.getValue().entrySet()) {
+                LatencyHistogram h = e.getValue();
+                String label = e.getKey() == ALL ? stage.getKey() : stage.getKey() + " op=" + e.getKey();
+                System.out.printf(Locale.US, "%-16s %,10d %9.2f %9.2f %9.2f %9.2f %10.2f %9.2f %6.1f%%%n",
+                        label, h.count(), h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+                        h.percentile(99.9) / 1e3, h.max() / 1e3, h.mean() / 1e3,
+                        100 * h.mean() * h.count() / totalNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Pool of direct ByteBuffers in power-of-two size classes from MIN_SIZE (256 B) to MAX_SIZE (64 KB).
+//
+// A channel writes a direct buffer straight to the socket; a heap buffer is first copied into a
+// temporary direct one by the JDK. Direct buffers are slow to allocate and only freed by GC, so
+// the pool hands the same ones out again. acquire(n) returns a Lease on a cleared buffer of at
+// least n bytes and release() gives it back; each class keeps at most -Dcalc.pool.max (1024) idle
+// buffers and leaves the rest to GC. Larger requests get an unpooled buffer. Leases are recycled
+// with their buffers, so acquire and release allocate nothing once the pool is warm.
+//
+// Leak detection: each Lease is registered with a Cleaner once, when it is created. A Lease that
+// becomes unreachable while still acquired was never released: it is counted
+// (calc_buffer_pool_leaks_total) and logged, with the stack of its acquire() if the JVM runs with
+// -Dcalc.pool.leakTrace=true (costly; for finding the leak). Releasing twice throws.
+public final class BufferPool {
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 64 * 1024;
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    // The pool the servers share
+    public static final BufferPool DEFAULT = new BufferPool(Integer.getInteger("calc.pool.max", 1024),
+            Boolean.getBoolean("calc.pool.leakTrace"));
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final ArrayBlockingQueue<Lease>[] idle;
+    private final boolean trace;
+    private final LongAdder leased = new LongAdder();    // acquired, not released
+    private final LongAdder allocated = new LongAdder(); // buffers created (pool was empty)
+    private final LongAdder leaks = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxIdlePerClass, boolean trace) {
+        if (maxIdlePerClass < 1) throw new IllegalArgumentException("maxIdlePerClass must be >= 1");
+        this.idle = new ArrayBlockingQueue[CLASSES];
+        for (int c = 0; c < CLASSES; c++) idle[c] = new ArrayBlockingQueue<>(maxIdlePerClass);
+        this.trace = trace;
+    }
+
+    // A direct buffer of at least size bytes, cleared (position 0, limit = capacity).
+    public Lease acquire(int size) {
+        Lease lease;
+        if (size > MAX_SIZE) {
+            lease = new Lease(this, -1, ByteBuffer.allocateDirect(size));
+            allocated.increment();
+        } else {
+            int c = sizeClass(size);
+            lease = idle[c].poll();
+            if (lease == null) {
+                lease = new Lease(this, c, ByteBuffer.allocateDirect(MIN_SIZE << c));
+                allocated.increment();
+            }
+        }
+        lease.buffer.clear();
+        lease.state.acquired.set(true);
+        if (trace) lease.state.acquiredAt = new Throwable("Buffer acquired here");
+        leased.increment();
+        return lease;
+    }
+
+    private static int sizeClass(int size) {
+        return size <= MIN_SIZE ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    public long leased()    { return leased.sum(); }
+    public long allocated() { return allocated.sum(); }
+    public long leaks()     { return leaks.sum(); }
+
+    // One pooled buffer; hold on to the Lease (not just the buffer) until release().
+    public static final class Lease {
+        public final ByteBuffer buffer;
+        private final BufferPool pool;
+        private final int sizeClass; // -1: unpooled
+        private final State state;
+
+        private Lease(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.pool = pool;
+            this.sizeClass = sizeClass;
+            this.state = new State(pool, buffer.capacity());
+            CLEANER.register(this, state);
+        }
+
+        public void release() {
+            if (!state.acquired.compareAndSet(true, false)) throw new IllegalStateException("Buffer released twice");
+            state.acquiredAt = null;
+            pool.leased.decrement();
+            if (sizeClass >= 0) pool.idle[sizeClass].offer(this); // class full: left to GC
+        }
+    }
+
+    // The Cleaner's view of a Lease: must not refer back to it, or it would never become unreachable.
+    private static final class State implements Runnable {
+        final AtomicBoolean acquired = new AtomicBoolean();
+        final BufferPool pool;
+        final int capacity;
+        volatile Throwable acquiredAt;
+
+        State(BufferPool pool, int capacity) {
+            this.pool = pool;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void run() {
+            if (!acquired.get()) return; // idle buffer dropped by a full class, or pool gone
+            pool.leased.decrement();
+            pool.leaks.increment();
+            Throwable at = acquiredAt;
+            StringBuilder sb = new StringBuilder("LEAK: a ").append(capacity)
+                    .append("-byte pooled buffer was garbage collected without being released");
+            if (at == null) {
+                sb.append(" (run with -Dcalc.pool.leakTrace=true to see where it was acquired)");
+            } else {
+                for (StackTraceElement e : at.getStackTrace()) sb.append("\n    at ").append(e);
+            }
+            Log.error(sb.toString());
+        }
+    }
+}
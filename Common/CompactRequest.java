@@ -0,0 +1,45 @@
+import java.nio.ByteBuffer;
+
+// Compact request format: the legacy request without the UTF-16 op name and with a 2-byte length.
+//
+//   Length(2, u16 = 13) | OpCode(1) | Operand1(4) | Operand2(4) | RequestID(2)
+//
+// 13 bytes instead of 13 + 2 + 2 * name length (about 40) for the legacy format; the server
+// names the operation itself from the opcode (Request.opNameForCode) when it logs. Everything
+// after the length sits at the legacy offset + 1, so RequestView decodes both formats.
+//
+// A legacy TML is never 0, so the length's high byte (always 0x00 for a compact request) is the
+// marker telling the two formats apart:
+//   UDP: a datagram whose first byte is 0x00 is a compact request; no setup needed.
+//   TCP: the client opens with HELLO; the server answers with the same bytes and from then on
+//        reads compact frames on that connection. A server that predates the format drops the
+//        connection instead (zero TML), so the client can fall back to legacy requests.
+// Replies are the usual 8-byte Response in both formats.
+public final class CompactRequest {
+    public static final int LENGTH = 13;
+    public static final byte VERSION = 1;
+    public static final int HELLO_LEN = 3;
+
+    private static final byte HELLO_MAGIC = 'C';
+
+    private CompactRequest() { }
+
+    // Allocation-free encode at dst's position (dst must be big-endian, the ByteBuffer default).
+    public static void encode(ByteBuffer dst, byte opCode, int operand1, int operand2, short requestId) {
+        dst.putShort((short) LENGTH);
+        dst.put(opCode);
+        dst.putInt(operand1);
+        dst.putInt(operand2);
+        dst.putShort(requestId);
+    }
+
+    // HELLO = 0x00 | 'C' | VERSION; the server's acknowledgement is identical.
+    public static void writeHello(ByteBuffer dst) {
+        dst.put((byte) 0).put(HELLO_MAGIC).put(VERSION);
+    }
+
+    // True if buf[at, at + HELLO_LEN) is a HELLO for this version.
+    public static boolean isHello(ByteBuffer buf, int at) {
+        return buf.get(at) == 0 && buf.get(at + 1) == HELLO_MAGIC && buf.get(at + 2) == VERSION;
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// Streaming decoder for TML-framed messages (requests and responses alike: byte 0 is the total
+// length). Bytes arrive in arbitrary chunks from a channel or stream; next() hands back each
+// complete frame as soon as it is buffered and keeps a trailing partial frame for the next read.
+//
+// Usage:
+//     while (decoder.read(channel) > 0) {
+//         ByteBuffer frame;
+//         while ((frame = decoder.next()) != null) { ... frame[position, limit) is one message ... }
+//     }
+//
+// The returned frame is a view into the decoder's buffer and is only valid until the next read().
+//
+// A server decoder can switch to compact framing (2-byte big-endian length, see CompactRequest)
+// when the peer opens with the compact HELLO; call negotiate() before the first next().
+public final class FrameDecoder {
+    // negotiate() results
+    public static final int NEED_MORE = 0;
+    public static final int LEGACY = 1;
+    public static final int COMPACT = 2;
+
+    // TML is one byte, so a frame is at most 255 bytes; a few KB lets one read pick up many
+    // pipelined frames while always leaving room for a whole frame after compaction.
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final ByteBuffer buf;   // always in "read mode": [position, limit) = undecoded bytes
+    private final ByteBuffer frame; // duplicate of buf re-bounded to the current frame
+    private boolean compact;        // frames start with a u16 length instead of a 1-byte TML
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameDecoder(int capacity) {
+        if (capacity < 255) throw new IllegalArgumentException("capacity must hold a 255-byte frame");
+        buf = ByteBuffer.allocate(capacity);
+        buf.flip(); // empty, in read mode
+        frame = buf.duplicate();
+    }
+
+    // Reads whatever the channel has (one read call). Returns the channel's result: -1 at EOF.
+    public int read(ReadableByteChannel ch) throws IOException {
+        buf.compact();
+        try {
+            return ch.read(buf);
+        } finally {
+            buf.flip();
+        }
+    }
+
+    // Blocks until at least one byte is available, then reads what the stream will give without
+    // blocking further. Returns -1 at EOF.
+    public int read(InputStream in) throws IOException {
+        buf.compact();
+        try {
+            int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            if (n > 0) buf.position(buf.position() + n);
+            return n;
+        } finally {
+            buf.flip();
+        }
+    }
+
+    // Server side, once per connection before the first next(): returns NEED_MORE until the
+    // first bytes have arrived, then LEGACY (nothing consumed) or COMPACT, in which case the HELLO
+    // has been consumed, the decoder now frames compact requests and the caller must answer with
+    // CompactRequest.writeHello.
+    public int negotiate() throws IOException {
+        if (!buf.hasRemaining()) return NEED_MORE;
+        int start = buf.position();
+        if (buf.get(start) != 0) return LEGACY;
+        if (buf.remaining() < CompactRequest.HELLO_LEN) return NEED_MORE;
+        if (!CompactRequest.isHello(buf, start)) throw new IOException("Unsupported compact-format hello");
+        buf.position(start + CompactRequest.HELLO_LEN);
+        compact = true;
+        return COMPACT;
+    }
+
+    public boolean isCompact() {
+        return compact;
+    }
+
+    // Next complete frame, or null if only a partial frame (or nothing) is buffered.
+    public ByteBuffer next() throws IOException {
+        if (!buf.hasRemaining()) return null;
+        int start = buf.position();
+        int tml;
+        if (compact) {
+            if (buf.remaining() < 2) return null;
+            tml = buf.getShort(start) & 0xFFFF;
+            if (tml < 2 || tml > buf.capacity()) throw new IOException("Bad compact frame length " + tml);
+        } else {
+            tml = buf.get(start) & 0xFF;
+            if (tml == 0) throw new IOException("Zero TML, cannot frame message");
+        }
+        if (buf.remaining() < tml) return null;
+        buf.position(start + tml);
+        frame.clear();
+        frame.position(start).limit(start + tml);
+        return frame;
+    }
+
+    // Bytes of a partial frame still waiting for the rest of their data.
+    public int buffered() {
+        return buf.remaining();
+    }
+}
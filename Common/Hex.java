@@ -0,0 +1,49 @@
+import java.nio.ByteBuffer;
+
+// Hex helpers for the request/response dumps both servers and clients print.
+// Table-driven: two char lookups per byte instead of a String.format call per byte.
+public final class Hex {
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Hex() { }
+
+    public static String toHex(byte[] arr, int len) {
+        if (len <= 0) return "";
+        char[] out = new char[len * 3 - 1];
+        for (int i = 0; i < len; i++) {
+            put(out, i, arr[i]);
+        }
+        return new String(out);
+    }
+
+    // Hex of buf[position, limit) without moving the position.
+    public static String toHex(ByteBuffer buf) {
+        int base = buf.position();
+        int len = buf.remaining();
+        if (len <= 0) return "";
+        char[] out = new char[len * 3 - 1];
+        for (int i = 0; i < len; i++) {
+            put(out, i, buf.get(base + i));
+        }
+        return new String(out);
+    }
+
+    // Appends "XX XX ..." to sb; lets callers build a whole log record in one reused builder.
+    public static StringBuilder appendHex(StringBuilder sb, ByteBuffer buf) {
+        int base = buf.position();
+        for (int i = 0; i < buf.remaining(); i++) {
+            int b = buf.get(base + i) & 0xFF;
+            if (i > 0) sb.append(' ');
+            sb.append(DIGITS[b >>> 4]).append(DIGITS[b & 0x0F]);
+        }
+        return sb;
+    }
+
+    private static void put(char[] out, int i, byte value) {
+        int b = value & 0xFF;
+        int at = i * 3;
+        out[at] = DIGITS[b >>> 4];
+        out[at + 1] = DIGITS[b & 0x0F];
+        if (at + 2 < out.length) out[at + 2] = ' ';
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+// Log-linear latency histogram in the style of HdrHistogram: every power-of-two range of values
+// is split into 128 equal sub-buckets, so any recorded value is reported to within 1/128
+// (< 0.8 %) of its true value, from 1 ns up to Long.MAX_VALUE, in a fixed 58 KB array.
+//
+// Not thread-safe: give each thread its own instance and merge() them for reporting.
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 - SUB_BITS; // enough for any non-negative long
+
+    private final long[] counts = new long[BUCKETS * SUB];
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[index(value)]++;
+        total++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        total += other.total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0L);
+        total = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long count() { return total; }
+    public long min()   { return total == 0 ? 0 : min; }
+    public long max()   { return max; }
+    public double mean() { return total == 0 ? 0 : sum / total; }
+
+    // Smallest recorded bucket value v such that at least `percentile`% of samples are <= v
+    // (reported as the bucket's upper edge, capped at the true max).
+    public long percentile(double percentile) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * total);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestEquivalent(i), max);
+        }
+        return max;
+    }
+
+    private static int index(long v) {
+        if (v < SUB) return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+        int bucket = exp - SUB_BITS + 1;
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return bucket * SUB + sub;
+    }
+
+    private static long highestEquivalent(int index) {
+        int bucket = index >>> SUB_BITS;
+        int sub = index & (SUB - 1);
+        if (bucket == 0) return sub;
+        int shift = bucket - 1;
+        long lowest = (long) (SUB + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+// Non-interactive load generator shared by ClientTCP and ClientUDP ("load" mode).
+//
+// Each connection (TCP socket or UDP socket) is driven by its own thread doing synchronous
+// request/reply calls through an Endpoint supplied by the transport.
+//   closed loop: send the next request as soon as the previous reply arrives; latency is the RTT.
+//   open loop:   requests are scheduled at a fixed rate (--rate spread evenly over connections);
+//                latency is measured from the *scheduled* send time, so a stalled server shows
+//                up as queueing delay instead of silently lowering the offered load.
+//
+// Options (after "load"):
+//   --conns N           connections / sockets (default 1)
+//   --mode open|closed  default closed
+//   --rate R            total requests/s; required for open loop, optional cap for closed loop
+//   --mix w0,..,w5      relative weights of opcodes 0..5 (default 1,1,1,1,1,1)
+//   --duration S        seconds to run (default 10)
+//   --format legacy|compact  request encoding (default legacy; see CompactRequest)
+//   --retries N         UDP: resend an unanswered request up to N times on an adaptive timeout
+//                       (default 0: a request without a reply within 1 s counts as lost)
+//   --pool N            TCP: the --conns threads share one PooledClientTCP of N connections
+//                       instead of owning a socket each
+public final class LoadGenerator {
+    // One connection's worth of synchronous calls. Implementations are used by one thread only.
+    public interface Endpoint extends Closeable {
+        // Sends one request and waits for the reply with the same RequestID. Returns the reply's
+        // error byte (0 = ok), or -1 if no reply arrived in time (UDP loss).
+        int call(byte opCode, int operand1, int operand2, short requestId) throws IOException;
+    }
+
+    public interface EndpointFactory {
+        Endpoint open() throws IOException;
+    }
+
+    private int conns = 1;
+    private boolean openLoop;
+    private double rate;
+    private final int[] mix = {1, 1, 1, 1, 1, 1};
+    private long durationNanos = 10_000_000_000L;
+    private boolean compact;
+    private int retries;
+    private int pool;
+
+    public static LoadGenerator fromArgs(String[] args, int from) {
+        LoadGenerator g = new LoadGenerator();
+        for (int i = from; i < args.length; i++) {
+            String opt = args[i];
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + opt);
+            String val = args[++i];
+            switch (opt) {
+                case "--conns": g.conns = Integer.parseInt(val); break;
+                case "--rate": g.rate = Double.parseDouble(val); break;
+                case "--duration": g.durationNanos = (long) (Double.parseDouble(val) * 1e9); break;
+                case "--mode":
+                    if (!val.equals("open") && !val.equals("closed")) {
+                        throw new IllegalArgumentException("--mode must be open or closed");
+                    }
+                    g.openLoop = val.equals("open");
+                    break;
+                case "--format":
+                    if (!val.equals("legacy") && !val.equals("compact")) {
+                        throw new IllegalArgumentException("--format must be legacy or compact");
+                    }
+                    g.compact = val.equals("compact");
+                    break;
+                case "--retries": g.retries = Integer.parseInt(val); break;
+                case "--pool": g.pool = Integer.parseInt(val); break;
+                case "--mix":
+                    String[] w = val.split(",");
+                    if (w.length != g.mix.length) throw new IllegalArgumentException("--mix needs 6 weights");
+                    for (int k = 0; k < w.length; k++) g.mix[k] = Integer.parseInt(w[k].trim());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + opt);
+            }
+        }
+        if (g.conns < 1) throw new IllegalArgumentException("--conns must be >= 1");
+        if (g.retries < 0) throw new IllegalArgumentException("--retries must be >= 0");
+        if (g.pool < 0) throw new IllegalArgumentException("--pool must be >= 0");
+        if (g.openLoop && g.rate <= 0) throw new IllegalArgumentException("open loop needs --rate");
+        int weight = 0;
+        for (int m : g.mix) {
+            if (m < 0) throw new IllegalArgumentException("--mix weights must be >= 0");
+            weight += m;
+        }
+        if (weight == 0) throw new IllegalArgumentException("--mix needs a non-zero weight");
+        return g;
+    }
+
+    public static String usage() {
+        return "load [--conns N] [--mode open|closed] [--rate R] [--mix w0,w1,w2,w3,w4,w5] [--duration S]"
+                + " [--format legacy|compact] [--retries N] [--pool N]";
+    }
+
+    // True if endpoints should send CompactRequest frames instead of legacy requests.
+    public boolean compactFormat() {
+        return compact;
+    }
+
+    // Retransmissions allowed per request (UDP endpoints only).
+    public int retries() {
+        return retries;
+    }
+
+    // Pooled connections shared by all load threads (TCP only; 0 = a connection per thread).
+    public int pool() {
+        return pool;
+    }
+
+    public void run(EndpointFactory factory) throws InterruptedException {
+        Worker[] workers = new Worker[conns];
+        CountDownLatch ready = new CountDownLatch(conns);
+        long[] startAt = new long[1];
+        for (int i = 0; i < conns; i++) {
+            workers[i] = new Worker(i, factory, ready, startAt);
+        }
+        System.out.printf(Locale.US, "Load: %d connection(s), %s loop%s, mix %s, %s requests, %.1f s%n",
+                conns, openLoop ? "open" : "closed",
+                rate > 0 ? String.format(Locale.US, " at %.0f req/s", rate) : "",
+                Arrays.toString(mix), compact ? "compact" : "legacy", durationNanos / 1e9);
+
+        for (Worker w : workers) w.thread.start();
+        ready.await(); // every connection is open (or has failed) before the clock starts
+        synchronized (startAt) {
+            startAt[0] = System.nanoTime() + 10_000_000L; // common start 10 ms from now
+            startAt.notifyAll();
+        }
+        for (Worker w : workers) w.thread.join();
+
+        LatencyHistogram all = new LatencyHistogram();
+        long sent = 0, errors = 0, lost = 0, failed = 0;
+        for (Worker w : workers) {
+            all.merge(w.latency);
+            sent += w.sent;
+            errors += w.errors;
+            lost += w.lost;
+            if (w.failure != null) {
+                failed++;
+                System.err.println("Connection " + w.id + " failed: " + w.failure.getMessage());
+            }
+        }
+        report(all, sent, errors, lost, failed);
+    }
+
+    private void report(LatencyHistogram h, long sent, long errors, long lost, long failed) {
+        double secs = durationNanos / 1e9;
+        System.out.printf(Locale.US, "Requests: %,d sent | %,d replies | %,d error replies | %,d lost | %d failed connections%n",
+                sent, h.count(), errors, lost, failed);
+        System.out.printf(Locale.US, "Throughput: %,.0f replies/s%n", h.count() / secs);
+        System.out.printf(Locale.US, "Latency (µs): min=%.1f  p50=%.1f  p90=%.1f  p99=%.1f  p99.9=%.1f  max=%.1f  mean=%.1f%n",
+                h.min() / 1e3, h.percentile(50) / 1e3, h.percentile(90) / 1e3, h.percentile(99) / 1e3,
+                h.percentile(99.9) / 1e3, h.max() / 1e3, h.mean() / 1e3);
+    }
+
+    private final class Worker implements Runnable {
+        final int id;
+        final Thread thread;
+        final EndpointFactory factory;
+        final CountDownLatch ready;
+        final long[] startAt;
+        final LatencyHistogram latency = new LatencyHistogram();
+        long sent, errors, lost;
+        IOException failure;
+
+        Worker(int id, EndpointFactory factory, CountDownLatch ready, long[] startAt) {
+            this.id = id;
+            this.factory = factory;
+            this.ready = ready;
+            this.startAt = startAt;
+            this.thread = new Thread(this, "load-" + id);
+        }
+
+        @Override
+        public void run() {
+            SplittableRandom rnd = new SplittableRandom(0x5EED + id);
+            int[] cumulative = new int[mix.length];
+            int acc = 0;
+            for (int k = 0; k < mix.length; k++) cumulative[k] = (acc += mix[k]);
+            long interval = rate > 0 ? (long) (1e9 * conns / rate) : 0;
+
+            Endpoint ep = null;
+            try {
+                ep = factory.open();
+            } catch (IOException e) {
+                failure = e;
+            }
+            long start;
+            ready.countDown();
+            synchronized (startAt) {
+                while (startAt[0] == 0) {
+                    try {
+                        startAt.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                start = startAt[0];
+            }
+            if (ep == null) return;
+
+            long end = start + durationNanos;
+            // Stagger connections across one interval so paced sends do not all fire together
+            long next = start + (interval > 0 ? interval * id / conns : 0);
+            short reqId = (short) (id << 10);
+            try (Endpoint endpoint = ep) {
+                while (true) {
+                    long scheduled;
+                    if (interval > 0) {
+                        scheduled = next;
+                        next += interval;
+                        long wait;
+                        while ((wait = scheduled - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+                    } else {
+                        scheduled = System.nanoTime();
+                    }
+                    if (scheduled >= end) break;
+
+                    int pick = rnd.nextInt(acc);
+                    byte op = 0;
+                    while (cumulative[op] <= pick) op++;
+                    int a = rnd.nextInt(-1000, 1001);
+                    int b = rnd.nextInt(-1000, 1001);
+
+                    long t0 = System.nanoTime();
+                    sent++;
+                    int err = endpoint.call(op, a, b, reqId++);
+                    long t1 = System.nanoTime();
+                    if (err < 0) {
+                        lost++;
+                        continue;
+                    }
+                    if (err != 0) errors++;
+                    latency.record(t1 - (openLoop ? scheduled : t0));
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Leveled, asynchronous console logging for the servers.
+//
+// Request threads never touch System.out: a record is a finished String pushed into a bounded
+// lock-free ring, and a single daemon thread drains the ring to the console, parked while the ring
+// is empty. When the ring is full the record is dropped and counted instead of blocking the
+// request path.
+//
+// Configuration (system properties):
+//   -Dcalc.log=off|error|info|debug|trace   default trace (everything, as the lab spec prints)
+//       error: failures only   info: + listening/connection lifecycle
+//       debug: + one line per request   trace: + hex dumps
+//   -Dcalc.log.sample=N                     log only every Nth request's debug/trace lines (default 1)
+//   -Dcalc.log.ring=N                       ring capacity, rounded up to a power of two (default 65536)
+public final class Log {
+    public enum Level { OFF, ERROR, INFO, DEBUG, TRACE }
+
+    private static final Level LEVEL = parseLevel(System.getProperty("calc.log", "trace"));
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("calc.log.sample", 1));
+    private static final Ring RING = new Ring(Integer.getInteger("calc.log.ring", 1 << 16));
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final ThreadLocal<int[]> SAMPLE_TICK = ThreadLocal.withInitial(() -> new int[1]);
+    // True while the writer is parked (or about to park) on an empty ring; the producer that
+    // clears it unparks the writer, so a busy log costs no unpark per record
+    private static final AtomicBoolean PARKED = new AtomicBoolean();
+    private static final Thread WRITER = LEVEL == Level.OFF ? null : new Thread(Log::drainForever, "log-writer");
+
+    static {
+        if (WRITER != null) {
+            WRITER.setDaemon(true);
+            WRITER.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+        }
+    }
+
+    private Log() { }
+
+    // An unknown level must not fail class initialisation (that would take down every caller
+    // with it); warn and keep the default. The log writer is not running yet, hence stderr.
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[log] unknown -Dcalc.log=" + name + ", using trace"
+                    + " (expected off, error, info, debug or trace)");
+            return Level.TRACE;
+        }
+    }
+
+    public static boolean enabled(Level level) {
+        return level != Level.OFF && level.compareTo(LEVEL) <= 0;
+    }
+
+    // Decides once per request whether its debug/trace lines are written, so a request's lines
+    // are either all present or all absent. Counter is per thread: no shared cache line.
+    public static boolean sampleRequest() {
+        if (!enabled(Level.DEBUG)) return false;
+        if (SAMPLE == 1) return true;
+        int[] tick = SAMPLE_TICK.get();
+        if (++tick[0] < SAMPLE) return false;
+        tick[0] = 0;
+        return true;
+    }
+
+    public static void error(String msg) { log(Level.ERROR, msg); }
+    public static void info(String msg)  { log(Level.INFO, msg); }
+    public static void debug(String msg) { log(Level.DEBUG, msg); }
+    public static void trace(String msg) { log(Level.TRACE, msg); }
+
+    public static void log(Level level, String msg) {
+        if (!enabled(level)) return;
+        // Errors keep going to stderr, everything else to stdout, as before.
+        if (!RING.offer(level == Level.ERROR ? "\u0000" + msg : msg)) DROPPED.incrementAndGet();
+        if (PARKED.get() && PARKED.compareAndSet(true, false)) LockSupport.unpark(WRITER);
+    }
+
+    // Synchronously writes everything queued so far (e.g. last words from a shutdown hook).
+    public static void flush() {
+        drain();
+    }
+
+    public static long dropped() {
+        return DROPPED.get();
+    }
+
+    // Sleeps until a producer unparks it: no timed wake-ups while nothing is logged. PARKED is
+    // set before the last look at the ring, and producers read it after publishing a record, so
+    // either the writer sees the record or the producer sees PARKED.
+    private static void drainForever() {
+        while (true) {
+            if (drain()) continue;
+            PARKED.set(true);
+            if (isEmpty()) LockSupport.park();
+            PARKED.set(false);
+        }
+    }
+
+    private static synchronized boolean isEmpty() {
+        return RING.isEmpty();
+    }
+
+    // Writes everything currently queued; returns false if there was nothing to write.
+    private static synchronized boolean drain() {
+        String rec = RING.poll();
+        if (rec == null) return false;
+        PrintStream out = System.out;
+        do {
+            if (rec.startsWith("\u0000")) {
+                System.err.println(rec.substring(1));
+            } else {
+                out.println(rec);
+            }
+        } while ((rec = RING.poll()) != null);
+        long lost = DROPPED.getAndSet(0);
+        if (lost > 0) System.err.println("[log] dropped " + lost + " records (ring full)");
+        out.flush();
+        return true;
+    }
+
+    // Bounded multi-producer ring (Vyukov-style): each slot carries a sequence number that says
+    // whether it is free for the producer claiming position p or filled for the consumer at p.
+    private static final class Ring {
+        private final int mask;
+        private final AtomicReferenceArray<String> slots;
+        private final AtomicLongArray seq;
+        private final AtomicLong head = new AtomicLong(); // next position to claim (producers)
+        private long tail;                                 // next position to read (single consumer)
+
+        Ring(int capacity) {
+            int cap = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            mask = cap - 1;
+            slots = new AtomicReferenceArray<>(cap);
+            seq = new AtomicLongArray(cap);
+            for (int i = 0; i < cap; i++) seq.set(i, i);
+        }
+
+        boolean offer(String rec) {
+            while (true) {
+                long p = head.get();
+                int i = (int) p & mask;
+                long s = seq.get(i);
+                if (s == p) {
+                    if (head.compareAndSet(p, p + 1)) {
+                        slots.lazySet(i, rec);
+                        seq.set(i, p + 1); // publish
+                        return true;
+                    }
+                } else if (s < p) {
+                    return false; // slot still holds an unread record: ring full
+                }
+                // else another producer claimed p first; retry with a fresh head
+            }
+        }
+
+        boolean isEmpty() {
+            return seq.get((int) tail & mask) != tail + 1;
+        }
+
+        String poll() {
+            int i = (int) tail & mask;
+            if (seq.get(i) != tail + 1) return null; // not yet published
+            String rec = slots.get(i);
+            slots.lazySet(i, null);
+            seq.set(i, tail + mask + 1); // free the slot for the producer one lap ahead
+            tail++;
+            return rec;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Server-side instrumentation shared by ServerTCP and ServerUDP.
+//
+// Counters are LongAdders (striped per CPU, so request threads do not contend on one cache line).
+// Service times go into a fixed set of striped LatencyHistograms, picked by thread id and each
+// guarded by its own lock; a scrape merges them. A fixed set rather than one per thread, because
+// the thread-per-connection modes would otherwise keep a 58 KB histogram per connection ever served.
+//
+// Exposed as Prometheus-style text on http://127.0.0.1:<port>/metrics when the server is started
+// with -Dcalc.metrics.port=<port>. Nothing is served (the counters still tick) otherwise.
+public final class Metrics {
+    private static final int OTHER_OP = 6;  // bucket for unknown opcodes
+    private static final int VECTOR_OP = 7; // bucket for VectorFrame requests
+
+    private static final LongAdder[] REQUESTS = new LongAdder[VECTOR_OP + 1];
+    private static final LongAdder ERRORS_127 = new LongAdder();
+    private static final LongAdder PARSE_FAILURES = new LongAdder();
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+    private static final LongAdder ACTIVE_CONNECTIONS = new LongAdder();
+    private static final LongAdder CACHE_HITS = new LongAdder();
+    private static final LongAdder CACHE_MISSES = new LongAdder();
+    private static final LongAdder DUPLICATE_REPLIES = new LongAdder();
+    private static final LongAdder RATE_LIMITED = new LongAdder();
+
+    // Queue depth of each pipeline stage (StagedPipeline), read at scrape time
+    private static final Map<String, IntSupplier> STAGE_DEPTHS = new ConcurrentSkipListMap<>();
+
+    // Power of two, about two per CPU (at most 64), so request threads seldom share a stripe
+    private static final LatencyHistogram[] SERVICE_TIME = new LatencyHistogram[
+            Math.min(64, Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1)];
+
+    static {
+        for (int i = 0; i < REQUESTS.length; i++) REQUESTS[i] = new LongAdder();
+        for (int i = 0; i < SERVICE_TIME.length; i++) SERVICE_TIME[i] = new LatencyHistogram();
+    }
+
+    private Metrics() { }
+
+    // One served request: opcode (-1 if it never parsed), reply error byte, time spent serving it.
+    public static void request(int opCode, int error, long serviceNanos) {
+        if (opCode >= 0) {
+            int bucket = opCode < OTHER_OP ? opCode : opCode == (VectorFrame.OPCODE & 0xFF) ? VECTOR_OP : OTHER_OP;
+            REQUESTS[bucket].increment();
+        }
+        if (error == Calculator.ERR_INVALID) ERRORS_127.increment();
+        LatencyHistogram h = SERVICE_TIME[(int) Thread.currentThread().getId() & (SERVICE_TIME.length - 1)];
+        synchronized (h) {
+            h.record(serviceNanos);
+        }
+    }
+
+    public static void parseFailure()          { PARSE_FAILURES.increment(); }
+    public static void bytesIn(long n)         { BYTES_IN.add(n); }
+    public static void bytesOut(long n)        { BYTES_OUT.add(n); }
+    public static void connectionOpened()      { ACTIVE_CONNECTIONS.increment(); }
+    public static void connectionClosed()      { ACTIVE_CONNECTIONS.decrement(); }
+    public static void cacheHit()              { CACHE_HITS.increment(); }
+    public static void cacheMiss()             { CACHE_MISSES.increment(); }
+    public static void duplicateReply()        { DUPLICATE_REPLIES.increment(); }
+    public static void rateLimited()           { RATE_LIMITED.increment(); }
+
+    // Registers a stage whose current queue depth is exported as calc_stage_queue_depth{stage}.
+    public static void stageDepth(String stage, IntSupplier depth) {
+        STAGE_DEPTHS.put(stage, depth);
+    }
+
+    // Starts the scrape endpoint if -Dcalc.metrics.port is set. server labels every series.
+    public static void startEndpointIfConfigured(String server) {
+        Integer port = Integer.getInteger("calc.metrics.port");
+        if (port == null) return;
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", ex -> {
+                byte[] body = render(server).getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+            http.start(); // handled on the HttpServer's own dispatcher thread
+            Log.info("Metrics at http://127.0.0.1:" + port + "/metrics");
+        } catch (IOException e) {
+            Log.error("Metrics endpoint failed to start: " + e.getMessage());
+        }
+    }
+
+    public static String render(String server) {
+        StringBuilder sb = new StringBuilder(2048);
+        String label = "server=\"" + server + "\"";
+
+        sb.append("# TYPE calc_requests_total counter\n");
+        for (int op = 0; op < REQUESTS.length; op++) {
+            sb.append("calc_requests_total{").append(label).append(",op=\"")
+                    .append(op == OTHER_OP ? "other" : op == VECTOR_OP ? "vector" : Integer.toString(op)).append("\"} ")
+                    .append(REQUESTS[op].sum()).append('\n');
+        }
+        counter(sb, "calc_errors_total", label + ",code=\"127\"", ERRORS_127.sum());
+        counter(sb, "calc_parse_failures_total", label, PARSE_FAILURES.sum());
+        counter(sb, "calc_rate_limited_total", label, RATE_LIMITED.sum());
+        counter(sb, "calc_bytes_in_total", label, BYTES_IN.sum());
+        counter(sb, "calc_bytes_out_total", label, BYTES_OUT.sum());
+        counter(sb, "calc_cache_hits_total", label, CACHE_HITS.sum());
+        counter(sb, "calc_cache_misses_total", label, CACHE_MISSES.sum());
+        counter(sb, "calc_duplicate_replies_total", label, DUPLICATE_REPLIES.sum());
+        sb.append("# TYPE calc_active_connections gauge\n");
+        sb.append("calc_active_connections{").append(label).append("} ").append(ACTIVE_CONNECTIONS.sum()).append('\n');
+        sb.append("# TYPE calc_buffer_pool_leased gauge\n");
+        sb.append("calc_buffer_pool_leased{").append(label).append("} ").append(BufferPool.DEFAULT.leased()).append('\n');
+        counter(sb, "calc_buffer_pool_allocated_total", label, BufferPool.DEFAULT.allocated());
+        counter(sb, "calc_buffer_pool_leaks_total", label, BufferPool.DEFAULT.leaks());
+        if (!STAGE_DEPTHS.isEmpty()) {
+            sb.append("# TYPE calc_stage_queue_depth gauge\n");
+            for (Map.Entry<String, IntSupplier> e : STAGE_DEPTHS.entrySet()) {
+                sb.append("calc_stage_queue_depth{").append(label).append(",stage=\"").append(e.getKey()).append("\"} ")
+                        .append(e.getValue().getAsInt()).append('\n');
+            }
+        }
+
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram h : SERVICE_TIME) {
+            synchronized (h) {
+                all.merge(h);
+            }
+        }
+        sb.append("# TYPE calc_service_time_seconds summary\n");
+        for (String q : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            sb.append("calc_service_time_seconds{").append(label).append(",quantile=\"").append(q).append("\"} ")
+                    .append(String.format(Locale.US, "%.9f", all.percentile(Double.parseDouble(q) * 100) / 1e9))
+                    .append('\n');
+        }
+        sb.append("calc_service_time_seconds_count{").append(label).append("} ").append(all.count()).append('\n');
+        sb.append("calc_service_time_seconds_sum{").append(label).append("} ")
+                .append(String.format(Locale.US, "%.9f", all.mean() * all.count() / 1e9)).append('\n');
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String labels, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per-source admission control for both servers: a token bucket per client address, refilled at
+// `rate` requests/s and holding at most `burst` tokens. A request that finds its bucket empty is
+// answered with Calculator.ERR_RATE_LIMITED instead of being computed.
+//
+// The bucket is kept in its GCRA form (the "virtual scheduling" equivalent of a token bucket): a
+// single theoretical arrival time per source. A request is admitted if that time is no more than
+// (burst - 1) emission intervals ahead of now, and then pushes it one interval further.
+//
+// Sources live in a fixed, direct-mapped table of longs, so memory stays bounded however many
+// clients there are. Each slot packs the arrival time (microseconds since start, 44 bits, about
+// 200 days) with a 20-bit fingerprint of the address, so admitting a request is a single CAS and
+// needs no lock. A source landing on a slot owned by another fingerprint takes it over with a
+// full bucket: under heavy collision the limit is approximate, never stricter than configured.
+//
+// Configuration (system properties):
+//   -Dcalc.rate=R          requests/s allowed per source address (default 0 = no limit)
+//   -Dcalc.rate.burst=B    bucket size (default max(1, R / 10), i.e. 100 ms worth)
+//   -Dcalc.rate.sources=N  table slots, rounded up to a power of two (default 65536)
+public final class RateLimiter {
+    private static final int TIME_BITS = 44;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long intervalMicros;  // one token
+    private final long toleranceMicros; // burst - 1 tokens
+    private final long originNanos = System.nanoTime();
+
+    public RateLimiter(double rate, int burst, int sources) {
+        if (rate <= 0) {
+            slots = null;
+            mask = 0;
+            intervalMicros = 0;
+            toleranceMicros = 0;
+            return;
+        }
+        if (burst < 1) throw new IllegalArgumentException("burst must be >= 1");
+        int cap = Integer.highestOneBit(Math.max(1, sources - 1)) << 1;
+        slots = new AtomicLongArray(cap);
+        mask = cap - 1;
+        intervalMicros = Math.max(1, (long) (1e6 / rate));
+        toleranceMicros = (burst - 1) * intervalMicros;
+    }
+
+    public static RateLimiter fromProperties() {
+        double rate = Double.parseDouble(System.getProperty("calc.rate", "0"));
+        int burst = Integer.getInteger("calc.rate.burst", Math.max(1, (int) (rate / 10)));
+        RateLimiter limiter = new RateLimiter(rate, burst, Integer.getInteger("calc.rate.sources", 1 << 16));
+        if (limiter.enabled()) Log.info("Rate limit: " + rate + " req/s per source, burst " + burst);
+        return limiter;
+    }
+
+    public boolean enabled() {
+        return slots != null;
+    }
+
+    // Takes one token for the source (an IPv4 address as an int, or any address hash); false if
+    // the source is over its limit.
+    public boolean tryAcquire(int source) {
+        if (slots == null) return true;
+        long h = source * 0x9E3779B97F4A7C15L;
+        int slot = (int) (h >>> 40) & mask;
+        long fingerprint = (h >>> 12) & 0xFFFFF; // independent of the slot bits
+        long now = (System.nanoTime() - originNanos) / 1_000;
+        while (true) {
+            long cur = slots.get(slot);
+            long tat = (cur >>> 20) == 0 || (cur & 0xFFFFF) != fingerprint ? now : Math.max(cur >>> 20, now);
+            if (tat - now > toleranceMicros) return false;
+            long next = ((tat + intervalMicros) & TIME_MASK) << 20 | fingerprint;
+            if (slots.compareAndSet(slot, cur, next)) return true;
+        }
+    }
+}
@@ -16,6 +16,14 @@ public class Request {
     private static final Charset UTF16BE = StandardCharsets.UTF_16BE;
     private static final byte[] UTF16BE_BOM = new byte[]{(byte)0xFE, (byte)0xFF};
 
+    // BOM + UTF-16BE name for each opcode, encoded once so encode() never touches the charset.
+    private static final byte[][] NAME_BYTES = new byte[6][];
+    static {
+        for (int code = 0; code < NAME_BYTES.length; code++) {
+            NAME_BYTES[code] = build((byte) code, 0, 0, (short) 0).opName;
+        }
+    }
+
     private Request(byte tml, byte opCode, int operand1, int operand2, short requestId, byte opNameLen, byte[] opName) {
         this.tml = tml;
         this.opCode = opCode;
@@ -67,6 +75,20 @@ public class Request {
         return buf.array();
     }
 
+    // Allocation-free encode straight into a reusable (big-endian) buffer; same bytes as
+    // build(...).toByteArray(). Advances dst's position by the TML.
+    public static void encode(ByteBuffer dst, byte opCode, int operand1, int operand2, short requestId) {
+        byte[] name = (opCode >= 0 && opCode < NAME_BYTES.length) ? NAME_BYTES[opCode] : null;
+        if (name == null) name = build(opCode, 0, 0, (short) 0).opName; // "unknown": not a hot path
+        dst.put((byte) (RequestView.HEADER_LEN + name.length));
+        dst.put(opCode);
+        dst.putInt(operand1);
+        dst.putInt(operand2);
+        dst.putShort(requestId);
+        dst.put((byte) name.length);
+        dst.put(name);
+    }
+
     public static Request parse(byte[] dat, int length) throws IllegalArgumentException {
         if (length < 1) throw new IllegalArgumentException("Empty datagram");
         ByteBuffer buf = ByteBuffer.wrap(dat, 0, length).order(ByteOrder.BIG_ENDIAN);
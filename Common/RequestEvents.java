@@ -0,0 +1,119 @@
+import java.net.SocketAddress;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Java Flight Recorder events for the stages of serving a request, so a latency spike can be
+// pinned on one of them: calc.Receive, calc.Decode, calc.Compute, calc.Log, calc.Encode, calc.Send.
+//
+// Each stage is timed with begin()/end() on a fresh event object. With no recording running, or
+// with the event disabled in it, the JIT reduces that to a flag check and the object is never
+// allocated. Receive and Send cover one socket read or write, which on TCP may carry several
+// requests, so their opcode and RequestID are -1. A blocking read is only recorded when its bytes
+// were already waiting, so time spent waiting for the client is never counted.
+//
+// Configuration:
+//   -Dcalc.jfr.sample=N   record the stages of every Nth request and every Nth read/write per
+//                         thread (default 1); a request's stages are recorded all together or not at all
+//   per-stage JFR settings, e.g. record only slow computations:
+//     -XX:StartFlightRecording:filename=calc.jfr,+calc.Compute#threshold=50us,+calc.Log#enabled=false
+//
+// Bench/StageReport prints per-stage latency percentiles from a recording.
+public final class RequestEvents {
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("calc.jfr.sample", 1));
+    private static final ThreadLocal<int[]> SAMPLE_TICK = ThreadLocal.withInitial(() -> new int[3]);
+
+    private RequestEvents() { }
+
+    // Decides once per request whether its stage events are committed (cf. Log.sampleRequest)
+    public static boolean sampleRequest() {
+        return sample(0);
+    }
+
+    // Decide whether one socket read (or write) is recorded. Reads, writes and requests are
+    // counted apart, so they cannot fall into step and always pick the same stage.
+    public static boolean sampleReceive() {
+        return sample(1);
+    }
+
+    public static boolean sampleSend() {
+        return sample(2);
+    }
+
+    private static boolean sample(int counter) {
+        if (SAMPLE == 1) return true;
+        int[] tick = SAMPLE_TICK.get();
+        if (++tick[counter] < SAMPLE) return false;
+        tick[counter] = 0;
+        return true;
+    }
+
+    // Ends stage and commits it with the request's details, if the running recording wants it.
+    // The remote address is only turned into a String for an event that is actually written.
+    public static void commit(Stage stage, int opCode, int requestId, long bytes, SocketAddress remote) {
+        stage.end();
+        if (!stage.shouldCommit()) return;
+        stage.opCode = opCode;
+        stage.requestId = requestId;
+        stage.bytes = bytes;
+        stage.remote = remote == null ? null : remote.toString();
+        stage.commit();
+    }
+
+    @Category({"Calculator", "Request Stages"})
+    @Enabled(true)
+    @Threshold("0 ns")
+    @StackTrace(false)
+    public abstract static class Stage extends Event {
+        @Label("Opcode")
+        @Description("Request opcode; 128 for a vector request, -1 when unknown or not tied to one request")
+        int opCode;
+
+        @Label("Request ID")
+        @Description("RequestID as sent by the client; -1 when not tied to one request")
+        int requestId;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Remote Address")
+        String remote;
+    }
+
+    @Name("calc.Receive")
+    @Label("Receive")
+    @Description("One socket read or datagram receive that did not wait for the client")
+    public static final class Receive extends Stage { }
+
+    @Name("calc.Decode")
+    @Label("Decode")
+    @Description("Framing checks and decoding of one request")
+    public static final class Decode extends Stage { }
+
+    @Name("calc.Compute")
+    @Label("Compute")
+    @Description("Evaluating one request (result cache included)")
+    public static final class Compute extends Stage { }
+
+    @Name("calc.Log")
+    @Label("Log")
+    @Description("Formatting one request's debug/trace record and handing it to the log writer")
+    public static final class Logging extends Stage { }
+
+    @Name("calc.Encode")
+    @Label("Encode")
+    @Description("Encoding one reply")
+    public static final class Encode extends Stage { }
+
+    @Name("calc.Send")
+    @Label("Send")
+    @Description("One socket write, flush or datagram send")
+    public static final class Send extends Stage { }
+}
@@ -0,0 +1,73 @@
+import java.nio.ByteBuffer;
+
+// Flyweight over an encoded request sitting in a (possibly direct, possibly reused) ByteBuffer.
+// Fields are read with absolute big-endian gets straight out of the buffer, so decoding a request
+// allocates nothing; one view per thread is re-pointed at each datagram with wrap().
+//
+// Validation mirrors Request.parse. Instead of throwing, wrap() records a constant error message
+// so malformed traffic does not allocate either.
+//
+// A frame whose first byte is 0x00 is read as a CompactRequest: same fields, each one byte later,
+// and no op name.
+public final class RequestView {
+    // TML(1) + OpCode(1) + Operand1(4) + Operand2(4) + RequestID(2) + OpNameLen(1)
+    public static final int HEADER_LEN = 13;
+
+    private ByteBuffer buf;
+    private int base;
+    private int fields; // base for legacy frames, base + 1 for compact ones (2-byte length)
+    private boolean compact;
+    private String error;
+
+    // Points the view at buf[position, limit). Returns false (see error()) if the bytes are not a
+    // well-formed request; the buffer's position and limit are never modified.
+    public boolean wrap(ByteBuffer buf) {
+        this.buf = buf;
+        this.base = buf.position();
+        int length = buf.remaining();
+        if (length < 1) return fail("Empty datagram");
+        compact = buf.get(base) == 0;
+        fields = compact ? base + 1 : base;
+        if (compact) {
+            if (length < 2 || tml() != length) return fail("Compact length mismatch");
+            if (length != CompactRequest.LENGTH) return fail("Compact request length mismatch");
+            error = null;
+            return true;
+        }
+        if (tml() != length) return fail("TML mismatch");
+        if (length < HEADER_LEN) return fail("Request too short");
+        if (HEADER_LEN + opNameLen() != length) return fail("Op name length mismatch");
+        error = null;
+        return true;
+    }
+
+    private boolean fail(String message) {
+        error = message;
+        return false;
+    }
+
+    public String error() { return error; }
+
+    public boolean compact()  { return compact; }
+    // Total length: the 1-byte TML, or a compact request's 2-byte length
+    public int tml()          { return compact ? Short.toUnsignedInt(buf.getShort(base)) : Byte.toUnsignedInt(buf.get(base)); }
+    public byte opCode()      { return buf.get(fields + 1); }
+    public int operand1()     { return buf.getInt(fields + 2); }
+    public int operand2()     { return buf.getInt(fields + 6); }
+    public short requestId()  { return buf.getShort(fields + 10); }
+    public int opNameLen()    { return compact ? 0 : Byte.toUnsignedInt(buf.get(base + 12)); }
+
+    // Decodes the UTF-16BE op name (skipping a leading BOM) into the caller's reusable builder,
+    // instead of materialising a byte[] and a String as Request.opNameString() does. Compact
+    // requests carry no name; the canonical name for the opcode is appended instead.
+    public StringBuilder appendOpName(StringBuilder sb) {
+        if (compact) return sb.append(Request.opNameForCode(opCode()));
+        int pos = base + HEADER_LEN;
+        int end = pos + opNameLen();
+        if (end - pos >= 2 && buf.get(pos) == (byte) 0xFE && buf.get(pos + 1) == (byte) 0xFF) pos += 2;
+        for (; pos + 1 < end; pos += 2) {
+            sb.append(buf.getChar(pos));
+        }
+        return sb;
+    }
+}
@@ -2,6 +2,8 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class Response {
+    public static final int LENGTH = 8; // TML(1) + Result(4) + Error(1) + RequestID(2)
+
     public final byte tml;        // 1 byte
     public final int result;      // 4 bytes
     public final byte errorCode;  // 1 byte (0 ok, 127 length error)
@@ -32,6 +34,15 @@ public class Response {
         return buf.array();
     }
 
+    // Allocation-free encode: writes the 8-byte reply at dst's position (dst must be big-endian,
+    // the ByteBuffer default) and advances it.
+    public static void encode(ByteBuffer dst, int result, byte errorCode, short requestId) {
+        dst.put((byte) LENGTH);
+        dst.putInt(result);
+        dst.put(errorCode);
+        dst.putShort(requestId);
+    }
+
     public static Response parse(byte[] dat, int length) {
         if (length < 8) throw new IllegalArgumentException("Response too short");
         ByteBuffer buf = ByteBuffer.wrap(dat, 0, length).order(ByteOrder.BIG_ENDIAN);
@@ -42,4 +53,14 @@ public class Response {
         short rid = buf.getShort();
         return new Response((byte)tmlUnsigned, res, err, rid);
     }
-}
+
+    // Parses the frame in buf[position, limit) (e.g. from FrameDecoder.next()) without moving it.
+    public static Response parse(ByteBuffer frame) {
+        int length = frame.remaining();
+        if (length < 8) throw new IllegalArgumentException("Response too short");
+        int base = frame.position();
+        int tmlUnsigned = Byte.toUnsignedInt(frame.get(base));
+        if (tmlUnsigned != length) throw new IllegalArgumentException("TML mismatch in response");
+        return new Response((byte)tmlUnsigned, frame.getInt(base + 1), frame.get(base + 5), frame.getShort(base + 6));
+    }
+}
\ No newline at end of file
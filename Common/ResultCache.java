@@ -0,0 +1,159 @@
+import java.util.concurrent.locks.StampedLock;
+
+// Optional cache of computed results keyed by (opCode, operand1, operand2), shared by all request
+// threads of a server.
+//
+// Layout: the table is split into segments (a StampedLock each), and each segment is an
+// open-addressing array of primitive slots: operands packed in a long, the opcode in an int,
+// the packed Calculator result in a long. Nothing is boxed. A key lives in one of the WAYS slots
+// starting at its hash; when all of them are taken, CLOCK picks the victim among them: a slot
+// whose reference bit is set (it was hit since the hand last passed) gets a second chance.
+//
+// Lookups are lock-free: they read under an optimistic stamp and treat a concurrent writer as a
+// miss. Inserts use tryWriteLock and are skipped when the segment is busy, so a request thread
+// never blocks on the cache.
+//
+// Only opcodes in the cached set go through the table; for every other opcode apply() is one
+// mask test away from Calculator.apply, so uncached operations are not slowed down (see the
+// cache.* benchmarks in MicroBench). A hit costs a few tens of nanoseconds, more than any of the
+// six current operations including division, so none is cached by default: the table is meant
+// for more expensive opcodes, which must be listed explicitly.
+//
+// Configuration (system properties):
+//   -Dcalc.cache=N          capacity in entries, rounded up to a power of two (default 0 = off)
+//   -Dcalc.cache.ops=5,...  opcodes to cache (default none)
+public final class ResultCache {
+    private static final int WAYS = 8;           // slots a key may occupy
+    private static final int MAX_SEGMENTS = 64;
+    private static final int OCCUPIED = 1 << 8;  // marks a used slot in ops[]
+
+    private final Calculator rules;
+    private final long opMask; // bit n set: opcode n is cached (opcodes 0..63)
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    public ResultCache(Calculator rules, int capacity, long opMask) {
+        this.rules = rules;
+        this.opMask = capacity > 0 ? opMask : 0;
+        int cap = Integer.highestOneBit(Math.max(WAYS, capacity - 1)) << 1;
+        int count = Math.min(MAX_SEGMENTS, cap / WAYS);
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) segments[i] = new Segment(cap / count);
+        segmentShift = Integer.numberOfTrailingZeros(count);
+    }
+
+    // The cache in front of rules as configured by -Dcalc.cache / -Dcalc.cache.ops (a pass-through
+    // when the capacity is 0).
+    public static ResultCache fromProperties(Calculator rules) {
+        int capacity = Integer.getInteger("calc.cache", 0);
+        String ops = System.getProperty("calc.cache.ops", "");
+        long mask = 0;
+        for (String op : ops.split(",")) {
+            if (op.isBlank()) continue;
+            int code = Integer.parseInt(op.trim());
+            if (code < 0 || code > 63) throw new IllegalArgumentException("calc.cache.ops: opcode out of range " + code);
+            mask |= 1L << code;
+        }
+        ResultCache cache = new ResultCache(rules, capacity, mask);
+        if (capacity > 0) {
+            Log.info("Result cache: " + cache.capacity() + " entries for opcodes [" + ops + "]");
+            if (mask == 0) Log.error("Result cache enabled but -Dcalc.cache.ops lists no opcodes; nothing will be cached");
+        }
+        return cache;
+    }
+
+    // Same contract as Calculator.apply: result and error packed into one long.
+    public long apply(int opCode, int a, int b) {
+        if (opCode >= 64 || (opMask >>> opCode & 1) == 0) return rules.apply(opCode, a, b);
+
+        long operands = (long) a << 32 | (b & 0xFFFFFFFFL);
+        long h = (operands ^ opCode * 0x9E3779B97F4A7C15L) * 0xC2B2AE3D27D4EB4FL;
+        h ^= h >>> 29;
+        Segment seg = segments[(int) h & (segments.length - 1)];
+        int home = (int) (h >>> segmentShift);
+
+        long cached = seg.get(home, operands, opCode);
+        if (cached >= 0) {
+            Metrics.cacheHit();
+            return cached;
+        }
+        Metrics.cacheMiss();
+        long packed = rules.apply(opCode, a, b);
+        seg.put(home, operands, opCode, packed);
+        return packed;
+    }
+
+    public int capacity() {
+        return segments.length * segments[0].ops.length;
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        final long[] operands;
+        final int[] ops;
+        final long[] values; // Calculator-packed: result in bits 0..31, error in 32..39 (never negative)
+        final byte[] referenced;
+        final int mask;
+        int hand;
+
+        Segment(int size) {
+            operands = new long[size];
+            ops = new int[size];
+            values = new long[size];
+            referenced = new byte[size];
+            mask = size - 1;
+        }
+
+        // Returns the cached packed value, or -1 on a miss (including a read raced by a writer).
+        long get(int home, long key, int opCode) {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) return -1;
+            int want = opCode | OCCUPIED;
+            for (int w = 0; w < WAYS; w++) {
+                int i = (home + w) & mask;
+                int op = ops[i];
+                if (op == 0) break; // slots are never emptied, so the key is not further on
+                if (op == want && operands[i] == key) {
+                    long value = values[i];
+                    if (!lock.validate(stamp)) return -1;
+                    referenced[i] = 1; // a hint only: racing on it is harmless
+                    return value;
+                }
+            }
+            return -1;
+        }
+
+        void put(int home, long key, int opCode, long value) {
+            long stamp = lock.tryWriteLock();
+            if (stamp == 0) return; // another thread is writing this segment: skip, never wait
+            try {
+                int want = opCode | OCCUPIED;
+                int slot = -1;
+                for (int w = 0; w < WAYS; w++) {
+                    int i = (home + w) & mask;
+                    if (ops[i] == 0 || (ops[i] == want && operands[i] == key)) {
+                        slot = i;
+                        break;
+                    }
+                }
+                if (slot < 0) slot = victim(home);
+                operands[slot] = key;
+                ops[slot] = want;
+                values[slot] = value;
+                referenced[slot] = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        // CLOCK over the key's WAYS slots: clear reference bits until an unreferenced slot is found
+        // (at most one full turn, after which every bit is clear).
+        private int victim(int home) {
+            while (true) {
+                int i = (home + (hand++ & (WAYS - 1))) & mask;
+                if (referenced[i] == 0) return i;
+                referenced[i] = 0;
+            }
+        }
+    }
+}
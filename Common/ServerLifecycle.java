@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+// Lifecycle every server mode implements, so a deploy can stop a server without cutting off the
+// requests it is serving:
+//   start()          bind and begin serving; returns once the port is bound
+//   stopAccepting()  take no new work: TCP closes its listening socket, UDP closes its port once
+//                    the datagrams already queued on it are answered
+//   drain(millis)    wait up to millis for in-flight requests to finish; true if all did
+//   close()          release whatever is still open
+//
+// Zero-downtime handover: run both the old and the new instance with -Dcalc.reuseport=true. The
+// new one binds the same port alongside the old one (SO_REUSEPORT) and the kernel spreads new
+// connections/datagrams over both; SIGTERM to the old one then stops it accepting and drains it,
+// and from then on everything lands on the new one.
+public interface ServerLifecycle {
+    void start() throws IOException;
+
+    void stopAccepting();
+
+    boolean drain(long timeoutMillis) throws InterruptedException;
+
+    void close();
+
+    // -Dcalc.reuseport=true: bind with SO_REUSEPORT so a second instance can take over the port
+    static boolean reusePort() {
+        return Boolean.getBoolean("calc.reuseport");
+    }
+
+    // Starts server and blocks until the JVM is asked to exit (Ctrl-C / SIGTERM), which then stops
+    // accepting, drains for up to -Dcalc.drain.ms (default 10000) and closes before exiting.
+    static void runUntilShutdown(ServerLifecycle server) {
+        try {
+            server.start();
+        } catch (IOException e) {
+            Log.error("Bind/listen failed: " + e.getMessage());
+            return;
+        }
+        long drainMillis = Long.getLong("calc.drain.ms", 10_000L);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            Log.info("Stopping: no new requests, draining for up to " + drainMillis + " ms");
+            server.stopAccepting();
+            try {
+                if (!server.drain(drainMillis)) Log.error("Drain deadline hit; closing what is still open");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            server.close();
+            Log.info("Server stopped.");
+            Log.flush();
+            stopped.countDown();
+        }, "shutdown"));
+        try {
+            stopped.await(); // serving threads may be daemons: keep the JVM up until the hook is done
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
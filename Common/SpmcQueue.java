@@ -0,0 +1,54 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free queue for exactly one producer thread and any number of consumer threads
+// (with one consumer it is a plain SPSC queue).
+//
+// A power-of-two ring of slots with two counters: tail, advanced only by the producer after it
+// has filled the slot (release store), and head, which consumers advance with a CAS after reading
+// the slot. The producer only reuses a slot once head has moved past it, so a consumer whose CAS
+// succeeds is guaranteed the item it read. Neither side allocates.
+public final class SpmcQueue<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to consume
+    private final AtomicLong tail = new AtomicLong(); // next slot to fill
+
+    public SpmcQueue(int capacity) {
+        int cap = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(cap);
+        mask = cap - 1;
+    }
+
+    // Producer thread only. False if the queue is full.
+    public boolean offer(T item) {
+        long t = tail.get();
+        if (t - head.get() > mask) return false;
+        slots.lazySet((int) t & mask, item);
+        tail.lazySet(t + 1); // publishes the slot
+        return true;
+    }
+
+    // Any thread. Null if the queue is empty.
+    public T poll() {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) return null;
+            T item = slots.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) return item;
+        }
+    }
+
+    // Approximate when other threads are active.
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,235 @@
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Staged execution for the server modes that keep network I/O and computation on separate threads:
+//
+//   I/O thread --submit (SpmcQueue)--> compute workers --one SpmcQueue per worker--> same I/O thread
+//
+// Each I/O thread owns one Lane. It frames requests into Jobs and submits them, and takes the
+// finished Jobs back to write their replies; a pool of compute workers, shared by every lane, runs
+// Job.compute() in between (decode, log, compute, encode). The I/O thread is the only producer
+// on its submit queue and the only consumer of its return queues, so every queue has the single
+// writer or single reader SpmcQueue needs, and nothing on the path locks or allocates.
+//
+// Bounded: a lane holds at most `capacity` jobs in flight. When it is full, the I/O thread stops
+// taking requests off its sockets until jobs come back, so the kernel buffers (and TCP flow
+// control) push back on clients rather than the heap growing.
+//
+// Idle workers spin briefly, then park until a submit wakes one; an I/O thread about to block in
+// its selector asks to be woken (Lane.waker) when the next job finishes.
+//
+// Queue depths are exported as calc_stage_queue_depth{stage="compute"} (submitted, not yet picked
+// up by a worker) and {stage="reply"} (finished, not yet written by the I/O thread).
+public final class StagedPipeline {
+    // -Dcalc.stage.queue: jobs in flight per lane
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("calc.stage.queue", 1024);
+    private static final int SPINS = 200; // empty polls before a worker parks
+
+    // Unit of work: the I/O thread fills it, a worker computes it, the I/O thread sends the result.
+    public abstract static class Job {
+        boolean failed;
+
+        // Runs on a compute worker
+        protected abstract void compute();
+
+        // True if compute() threw and left no result; the I/O thread answers for it (TCP, which
+        // owes every request a reply) or drops it (UDP, where the client retransmits)
+        public boolean failed() {
+            return failed;
+        }
+    }
+
+    private final Thread[] workers;
+    private final List<Lane<?>> lanes = new ArrayList<>();
+    private Lane<?>[] active = new Lane<?>[0];
+    private final AtomicIntegerArray parked; // 1 while worker i is parked (or about to)
+    private final AtomicInteger idle = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public StagedPipeline(int workerCount, String name) {
+        if (workerCount < 1) throw new IllegalArgumentException("workers must be >= 1");
+        workers = new Thread[workerCount];
+        parked = new AtomicIntegerArray(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            int w = i;
+            workers[i] = new Thread(() -> work(w), name + "-worker-" + i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    // A lane for one I/O thread. waker is called (from a worker) when a job finishes while the I/O
+    // thread is blocked, typically Selector::wakeup. All lanes are created before start().
+    public <J extends Job> Lane<J> lane(int capacity, Runnable waker) {
+        Lane<J> lane = new Lane<>(this, capacity, workers.length, waker);
+        lanes.add(lane);
+        return lane;
+    }
+
+    public void start() {
+        active = lanes.toArray(new Lane<?>[0]);
+        Metrics.stageDepth("compute", () -> {
+            int n = 0;
+            for (Lane<?> l : active) n += l.submitted.size();
+            return n;
+        });
+        Metrics.stageDepth("reply", () -> {
+            int n = 0;
+            for (Lane<?> l : active) n += l.finished();
+            return n;
+        });
+        for (Thread t : workers) t.start();
+    }
+
+    public int workers() {
+        return workers.length;
+    }
+
+    // Workers stop once they are idle; jobs still queued are not run.
+    public void stop() {
+        running = false;
+        for (Thread t : workers) LockSupport.unpark(t);
+    }
+
+    private void work(int w) {
+        Lane<?>[] lanes = active;
+        int spins = 0;
+        int start = w; // lanes are visited from a different one per worker
+        while (running) {
+            boolean ran = false;
+            for (int i = 0; i < lanes.length; i++) {
+                if (lanes[(start + i) % lanes.length].runOne(w)) ran = true;
+            }
+            if (ran) {
+                spins = 0;
+                continue;
+            }
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            spins = 0;
+            parked.set(w, 1);
+            idle.incrementAndGet();
+            if (!anySubmitted(lanes) && running) LockSupport.park(this);
+            if (parked.compareAndSet(w, 1, 0)) idle.decrementAndGet(); // not claimed by a signal
+        }
+    }
+
+    private static boolean anySubmitted(Lane<?>[] lanes) {
+        for (Lane<?> l : lanes) {
+            if (!l.submitted.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    // After a submit: wakes one parked worker, if there is one.
+    private void signal() {
+        VarHandle.fullFence(); // the submit must be visible before idle is read (pairs with work())
+        if (idle.get() == 0) return;
+        for (int w = 0; w < workers.length; w++) {
+            if (parked.compareAndSet(w, 1, 0)) {
+                idle.decrementAndGet();
+                LockSupport.unpark(workers[w]);
+                return;
+            }
+        }
+    }
+
+    public static final class Lane<J extends Job> {
+        private final StagedPipeline pipeline;
+        private final SpmcQueue<J> submitted;
+        private final SpmcQueue<J>[] done; // one per worker, so each has a single producer
+        private final Runnable waker;
+        private final AtomicBoolean waiting = new AtomicBoolean();
+        private final int capacity;
+        private int inFlight;  // I/O thread only
+        private int nextDone;  // I/O thread only: return queue polled first
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Lane(StagedPipeline pipeline, int capacity, int workers, Runnable waker) {
+            if (capacity < 1) throw new IllegalArgumentException("capacity must be >= 1");
+            this.pipeline = pipeline;
+            this.submitted = new SpmcQueue<>(capacity);
+            this.done = new SpmcQueue[workers];
+            for (int i = 0; i < workers; i++) done[i] = new SpmcQueue<>(submitted.capacity());
+            this.capacity = capacity;
+            this.waker = waker;
+        }
+
+        // I/O thread: true while no more jobs can be submitted until some come back
+        public boolean isFull() {
+            return inFlight >= capacity;
+        }
+
+        public int inFlight() {
+            return inFlight;
+        }
+
+        // I/O thread: hands job to the compute workers. False (job not taken) if the lane is full.
+        public boolean submit(J job) {
+            if (inFlight >= capacity) return false;
+            job.failed = false;
+            if (!submitted.offer(job)) return false;
+            inFlight++;
+            pipeline.signal();
+            return true;
+        }
+
+        // I/O thread: the next finished job, or null if none has come back
+        public J poll() {
+            for (int i = 0; i < done.length; i++) {
+                int q = nextDone;
+                J job = done[q].poll();
+                if (job != null) {
+                    inFlight--;
+                    return job;
+                }
+                nextDone = q + 1 == done.length ? 0 : q + 1;
+            }
+            return null;
+        }
+
+        // I/O thread, before blocking: asks to be woken by the next finished job. False if one is
+        // already waiting (do not block).
+        public boolean prepareToWait() {
+            waiting.set(true);
+            if (finished() > 0) {
+                waiting.set(false);
+                return false;
+            }
+            return true;
+        }
+
+        // I/O thread, after waking up
+        public void doneWaiting() {
+            waiting.set(false);
+        }
+
+        private int finished() {
+            int n = 0;
+            for (SpmcQueue<J> q : done) n += q.size();
+            return n;
+        }
+
+        // Worker w: runs one submitted job, if any, and hands it back
+        private boolean runOne(int w) {
+            J job = submitted.poll();
+            if (job == null) return false;
+            try {
+                job.compute();
+            } catch (RuntimeException e) {
+                job.failed = true;
+                Log.error("Compute failed: " + e);
+            }
+            done[w].offer(job); // never full: at most capacity jobs are in flight
+            VarHandle.fullFence(); // the job must be visible before waiting is read (pairs with prepareToWait)
+            if (waiting.get() && waiting.compareAndSet(true, false)) waker.run();
+            return true;
+        }
+    }
+}
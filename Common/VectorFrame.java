@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+
+// Multi-operation request/reply: up to MAX_ITEMS (opCode, operand1, operand2) tuples under one
+// RequestID, answered by one frame holding a result and an error code per item.
+//
+//   request: TML(1) | 0x80(1) | RequestID(2) | Count(1) | Count x { OpCode(1) Operand1(4) Operand2(4) }
+//   reply:   TML(1) | 0x80(1) | RequestID(2) | Count(1) | Count x { Result(4) Error(1) }
+//
+// Byte 1 of a scalar request is its opcode (0..5), so OPCODE (0x80) in that position marks a
+// vector frame; older servers answer it like any unknown opcode. Replies are told apart by TML:
+// a scalar reply is always 8 bytes, a vector reply 5 + 5 * Count (never 8). No op names are sent,
+// so each item costs 9 bytes instead of 13 + name (about 40) for a scalar request, plus 5 reply
+// bytes instead of 8. Count is capped so both frames fit the 1-byte TML.
+//
+// An instance is a reusable per-thread decode/evaluate/encode scratch, like RequestView: the
+// server path allocates nothing.
+public final class VectorFrame {
+    public static final byte OPCODE = (byte) 0x80;
+    public static final int HEADER_LEN = 5;
+    public static final int ITEM_LEN = 9;
+    public static final int RESULT_LEN = 5;
+    public static final int MAX_ITEMS = (255 - HEADER_LEN) / ITEM_LEN; // 27
+    public static final int MAX_REPLY_LEN = HEADER_LEN + MAX_ITEMS * RESULT_LEN;
+
+    private final int[] ops = new int[MAX_ITEMS];
+    private final int[] operand1 = new int[MAX_ITEMS];
+    private final int[] operand2 = new int[MAX_ITEMS];
+    private final int[] results = new int[MAX_ITEMS];
+    private final byte[] errors = new byte[MAX_ITEMS];
+    private int count;
+    private short requestId;
+    private String error;
+
+    // True if frame[position, limit) is flagged as a vector frame (it may still be malformed).
+    public static boolean isVector(ByteBuffer frame) {
+        return frame.remaining() >= 2 && frame.get(frame.position() + 1) == OPCODE;
+    }
+
+    // Client side: writes a request for items [0, n) at dst's position and advances it.
+    public static void encodeRequest(ByteBuffer dst, short requestId, byte[] ops, int[] a, int[] b, int n) {
+        if (n < 0 || n > MAX_ITEMS) throw new IllegalArgumentException("Vector request holds 0.." + MAX_ITEMS + " items");
+        dst.put((byte) (HEADER_LEN + n * ITEM_LEN));
+        dst.put(OPCODE);
+        dst.putShort(requestId);
+        dst.put((byte) n);
+        for (int i = 0; i < n; i++) {
+            dst.put(ops[i]);
+            dst.putInt(a[i]);
+            dst.putInt(b[i]);
+        }
+    }
+
+    // Server side: copies the items of the request in frame[position, limit) into this scratch.
+    // Returns false (see error()) if the frame is malformed; the buffer is never modified.
+    public boolean decodeRequest(ByteBuffer frame) {
+        int base = frame.position();
+        int length = frame.remaining();
+        requestId = 0;
+        if (length < HEADER_LEN) return fail("Vector request too short");
+        requestId = frame.getShort(base + 2); // echoed even if the rest turns out malformed
+        if (Byte.toUnsignedInt(frame.get(base)) != length) return fail("TML mismatch");
+        int n = Byte.toUnsignedInt(frame.get(base + 4));
+        if (n > MAX_ITEMS || HEADER_LEN + n * ITEM_LEN != length) return fail("Vector item count mismatch");
+        for (int i = 0, p = base + HEADER_LEN; i < n; i++, p += ITEM_LEN) {
+            ops[i] = Byte.toUnsignedInt(frame.get(p));
+            operand1[i] = frame.getInt(p + 1);
+            operand2[i] = frame.getInt(p + 5);
+        }
+        count = n;
+        error = null;
+        return true;
+    }
+
+    public void evaluate(Calculator rules) {
+        rules.applyAll(ops, operand1, operand2, count, results, errors);
+    }
+
+    // Server side: writes the reply for the decoded items at dst's position and advances it.
+    public void encodeReply(ByteBuffer dst) {
+        dst.put((byte) (HEADER_LEN + count * RESULT_LEN));
+        dst.put(OPCODE);
+        dst.putShort(requestId);
+        dst.put((byte) count);
+        for (int i = 0; i < count; i++) {
+            dst.putInt(results[i]);
+            dst.put(errors[i]);
+        }
+    }
+
+    // Client side: reads the reply in frame[position, limit) into this scratch (see count(),
+    // result(i), itemError(i)). Throws IllegalArgumentException if malformed, like Response.parse.
+    public void decodeReply(ByteBuffer frame) {
+        int base = frame.position();
+        int length = frame.remaining();
+        if (length < HEADER_LEN || frame.get(base + 1) != OPCODE) throw new IllegalArgumentException("Not a vector reply");
+        if (Byte.toUnsignedInt(frame.get(base)) != length) throw new IllegalArgumentException("TML mismatch in response");
+        int n = Byte.toUnsignedInt(frame.get(base + 4));
+        if (n > MAX_ITEMS || HEADER_LEN + n * RESULT_LEN != length) {
+            throw new IllegalArgumentException("Vector item count mismatch in response");
+        }
+        requestId = frame.getShort(base + 2);
+        for (int i = 0, p = base + HEADER_LEN; i < n; i++, p += RESULT_LEN) {
+            results[i] = frame.getInt(p);
+            errors[i] = frame.get(p + 4);
+        }
+        count = n;
+    }
+
+    private boolean fail(String message) {
+        error = message;
+        return false;
+    }
+
+    public String error()         { return error; }
+    public int count()            { return count; }
+    public short requestId()      { return requestId; }
+    public int opCode(int i)      { return ops[i]; }
+    public int operand1(int i)    { return operand1[i]; }
+    public int operand2(int i)    { return operand2[i]; }
+    public int result(int i)      { return results[i]; }
+    public byte itemError(int i)  { return errors[i]; }
+}
@@ -0,0 +1,90 @@
+import java.net.InetSocketAddress;
+
+// One backend server instance behind the proxy, with the state routing and health checking need.
+// Owned by the proxy's event loop thread; nothing here is shared with other threads.
+//
+// Health: every HEALTH_MILLIS the proxy sends an in-band probe (an add of 0 and 0) down the same
+// path as client requests. FALL probes in a row that go unanswered within PROBE_TIMEOUT_MILLIS, or
+// a broken connection / ICMP port unreachable, take the backend out of rotation; one answered
+// probe puts it back.
+final class Backend {
+    static final long HEALTH_MILLIS = Long.getLong("calc.proxy.health.ms", 1000L);
+    static final long PROBE_TIMEOUT_MILLIS = Long.getLong("calc.proxy.probe.ms", 500L);
+    static final int FALL = 2;
+
+    final int index;
+    final InetSocketAddress address;
+    final String name;
+
+    private boolean healthy = true; // optimistic until the first probe says otherwise
+    private int failures;           // consecutive failed probes
+    int outstanding;                // client requests sent, not answered yet
+    long requests;                  // client requests sent, lifetime
+
+    // Probe in flight: its RequestID on the backend path, or -1
+    int probeId = -1;
+    long probeSentNanos;
+    long nextProbeNanos;
+
+    Backend(int index, InetSocketAddress address) {
+        this.index = index;
+        this.address = address;
+        this.name = address.getHostString() + ":" + address.getPort();
+    }
+
+    // host:port, or just port for localhost
+    static Backend parse(int index, String spec) {
+        int colon = spec.lastIndexOf(':');
+        String host = colon < 0 ? "127.0.0.1" : spec.substring(0, colon);
+        int port = Integer.parseInt(spec.substring(colon + 1));
+        return new Backend(index, new InetSocketAddress(host, port));
+    }
+
+    boolean healthy() {
+        return healthy;
+    }
+
+    void probeAnswered() {
+        probeId = -1;
+        failures = 0;
+        if (!healthy) {
+            healthy = true;
+            Log.info("Backend " + name + " is up");
+        }
+    }
+
+    void probeFailed(String why) {
+        probeId = -1;
+        if (++failures >= FALL) down(why);
+    }
+
+    // Passive check: the data path itself failed
+    void down(String why) {
+        failures = Math.max(failures, FALL);
+        if (healthy) {
+            healthy = false;
+            Log.error("Backend " + name + " is down: " + why);
+        }
+    }
+
+    // A probe is in flight and has been for longer than PROBE_TIMEOUT_MILLIS
+    boolean probeExpired(long now) {
+        return probeId >= 0 && now - probeSentNanos > PROBE_TIMEOUT_MILLIS * 1_000_000L;
+    }
+
+    // No probe in flight and HEALTH_MILLIS have passed since the last one was sent
+    boolean probeDue(long now) {
+        return probeId < 0 && now - nextProbeNanos >= 0;
+    }
+
+    void probeSent(int id, long now) {
+        probeId = id;
+        probeSentNanos = now;
+        nextProbeNanos = now + HEALTH_MILLIS * 1_000_000L;
+    }
+
+    @Override
+    public String toString() {
+        return name + (healthy ? " up" : " down") + ", " + outstanding + " outstanding, " + requests + " requests";
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Sharding front proxy: clients talk to one address, the proxy spreads their requests over a set
+// of ServerTCP / ServerUDP instances (Router), rewriting RequestIDs so all clients share the
+// proxy's backend sockets (ProxyTCP, ProxyUDP), and health-checks every backend (Backend).
+//
+//   java CalcProxy CalcProxy <port> tcp|udp <backend>[,<backend>...] [least | hash]
+//   backend: host:port, or just port for 127.0.0.1
+public class CalcProxy {
+    public static void main(String[] args) {
+        if (args.length < 4 || args.length > 5 || !"CalcProxy".equals(args[0])
+                || !(args[2].equals("tcp") || args[2].equals("udp"))) {
+            System.err.println("Usage: java CalcProxy CalcProxy <port> tcp|udp <host:port>[,<host:port>...] [least | hash]");
+            System.err.println("Example: java CalcProxy CalcProxy 10023 tcp 10031,10032,10033");
+            System.err.println("Example: java CalcProxy CalcProxy 10023 udp tux055:10023,tux056:10023 hash");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[1]);
+        List<Backend> backends = new ArrayList<>();
+        for (String spec : args[3].split(",")) {
+            backends.add(Backend.parse(backends.size(), spec.trim()));
+        }
+        Router.Policy policy;
+        try {
+            policy = Router.Policy.valueOf((args.length == 5 ? args[4] : "least").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown routing: " + args[4] + " (expected least or hash)");
+            System.exit(1);
+            return;
+        }
+        Router router = new Router(backends, policy);
+        ServerLifecycle proxy = args[2].equals("tcp") ? new ProxyTCP(port, backends, router)
+                : new ProxyUDP(port, backends, router);
+        ServerLifecycle.runUntilShutdown(proxy);
+    }
+}
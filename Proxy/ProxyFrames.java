@@ -0,0 +1,41 @@
+import java.nio.ByteBuffer;
+
+// What the proxy needs to know about the frames it relays: where their RequestID sits, so it can
+// be rewritten in place, and the replies a server gives to requests too malformed to forward.
+final class ProxyFrames {
+    static final int MAX_FRAME = 255;     // legacy and vector TML is one byte; compact requests are 13
+    static final int MAX_DATAGRAM = 1024; // as ServerUDP
+
+    private ProxyFrames() { }
+
+    // Offset of the RequestID in a well-formed request frame[position, limit), relative to position;
+    // -1 if the frame is malformed (the proxy answers those itself, see malformedReply).
+    static int requestIdOffset(ByteBuffer frame, RequestView view, VectorFrame vec) {
+        if (VectorFrame.isVector(frame)) return vec.decodeRequest(frame) ? 2 : -1;
+        if (!view.wrap(frame)) return -1;
+        return view.compact() ? 11 : 10;
+    }
+
+    // Offset of the RequestID in a reply frame, or -1 if it is too short to hold one. Scalar
+    // replies are always 8 bytes; vector replies are 5 + 5n, never 8.
+    static int replyIdOffset(ByteBuffer frame) {
+        int length = frame.remaining();
+        if (length == Response.LENGTH) return 6;
+        return length >= VectorFrame.HEADER_LEN ? 2 : -1;
+    }
+
+    // Appends to dst the reply a backend would give to the malformed request in frame: error 127,
+    // with the RequestID echoed by ServerTCP whenever the header arrived in full, and 0 by ServerUDP.
+    // view and vec must still hold the failed requestIdOffset() decode of frame.
+    static void malformedReply(ByteBuffer frame, RequestView view, VectorFrame vec, boolean tcp, ByteBuffer dst) {
+        short rid = 0;
+        if (tcp) {
+            if (VectorFrame.isVector(frame)) {
+                rid = vec.requestId();
+            } else if (frame.remaining() >= RequestView.HEADER_LEN) {
+                rid = view.requestId();
+            }
+        }
+        Response.encode(dst, 0, Calculator.ERR_INVALID, rid);
+    }
+}
@@ -0,0 +1,550 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// TCP front of CalcProxy: one Selector thread relays TML frames between any number of client
+// connections and a persistent connection to each backend (two if clients use both the legacy and
+// the compact request format, since a connection's format is fixed by its first bytes).
+//
+// Every request forwarded to a backend gets a fresh RequestID from that connection's 65536-slot
+// table, so requests from all clients share the backend connection without their IDs colliding;
+// the reply's RequestID is looked up and restored before it goes back to its client. Malformed
+// requests are answered by the proxy itself exactly as ServerTCP would, since a backend could not
+// echo an ID the proxy could map back. Bytes for each socket are gathered during a loop iteration
+// and written once at its end.
+//
+// A backend connection that fails, or whose backend stops answering health probes, has its
+// outstanding requests resent to another backend (calculator requests are idempotent); a request
+// that has been tried MAX_TRIES times, or finds no healthy backend, is answered with error 125.
+// -Dcalc.rate is enforced here, per client address, before a request is forwarded: behind the
+// proxy every request comes from the proxy's address, so the backends' own limit cannot tell
+// clients apart. Replies to one client's pipelined requests can return out of order; clients
+// match RequestIDs.
+final class ProxyTCP implements ServerLifecycle {
+    private static final int HIGH_WATER = Integer.getInteger("calc.tcp.highWater", 64 * 1024);
+    private static final long TICK_MILLIS = 50;
+    private static final int MAX_TRIES = 3;
+    private static final int LEGACY = 0, COMPACT = 1;
+    private static final RateLimiter LIMITER = RateLimiter.fromProperties();
+
+    private final int port;
+    private final Backend[] backends;
+    private final Router router;
+    private final Link[][] links; // [backend][LEGACY or COMPACT], null until first used
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread loop;
+    private volatile boolean stopping;
+    private volatile boolean closing;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // Loop thread state
+    private final RequestView view = new RequestView();
+    private final VectorFrame vec = new VectorFrame();
+    private final ArrayDeque<Pending> free = new ArrayDeque<>();
+    private final ArrayDeque<Peer> dirty = new ArrayDeque<>(); // sockets with bytes to write
+    private final ByteBuffer scratch = ByteBuffer.allocate(Response.LENGTH);
+    private int clients;
+
+    ProxyTCP(int port, List<Backend> backends, Router router) {
+        this.port = port;
+        this.backends = backends.toArray(new Backend[0]);
+        this.router = router;
+        this.links = new Link[this.backends.length][2];
+    }
+
+    // A request relayed to a backend, or a health probe (client == null)
+    private static final class Pending {
+        final ByteBuffer frame = ByteBuffer.allocate(ProxyFrames.MAX_FRAME); // as sent: backend's RequestID
+        int idAt;         // RequestID offset in frame
+        Client client;
+        short clientId;   // RequestID the client used
+        int format;       // LEGACY or COMPACT
+        int tries;
+    }
+
+    // Either end of a relay: bytes appended during an iteration go out in one write at its end.
+    private abstract static class Peer {
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer out = ByteBuffer.allocate(8192); // [0, position) waiting to be written
+        boolean dirty;
+        boolean closed;
+
+        void append(ByteBuffer src) {
+            if (out.remaining() < src.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + src.remaining()));
+                out.flip();
+                out = bigger.put(out);
+            }
+            out.put(src);
+        }
+    }
+
+    private static final class Client extends Peer {
+        final FrameDecoder in = new FrameDecoder();
+        final int routeKey;
+        final int source; // client address, the rate limiter's key
+        boolean negotiated;
+        int format = LEGACY;
+        int inFlight; // requests relayed, not answered yet
+
+        Client(SocketChannel channel, InetSocketAddress remote) {
+            this.channel = channel;
+            this.routeKey = Router.key(remote);
+            this.source = remote.getAddress().hashCode();
+        }
+    }
+
+    private static final class Link extends Peer {
+        final Backend backend;
+        final int format;
+        final FrameDecoder in = new FrameDecoder();
+        final Pending[] slots = new Pending[1 << 16];
+        ByteBuffer hello; // compact: the backend's HELLO echo, read before any reply
+        boolean connected;
+        int inFlight;
+        int nextId;
+
+        Link(Backend backend, int format) {
+            this.backend = backend;
+            this.format = format;
+        }
+
+        // A free RequestID on this connection, or -1 if 65536 requests are outstanding
+        int allocate(Pending p) {
+            for (int k = 0; k < slots.length; k++) {
+                int id = nextId;
+                nextId = (nextId + 1) & 0xFFFF;
+                if (slots[id] == null) {
+                    slots[id] = p;
+                    inFlight++;
+                    return id;
+                }
+            }
+            return -1;
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        try {
+            if (ServerLifecycle.reusePort()) ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            ch.bind(new InetSocketAddress(port), 1024);
+            ch.configureBlocking(false);
+            selector = Selector.open();
+            ch.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        server = ch;
+        loop = new Thread(this::run, "proxy-tcp");
+        loop.start();
+        Log.info("TCP proxy listening on port " + port + " (" + router.policy().name().toLowerCase(Locale.ROOT)
+                + " routing over " + backends.length + " backends)");
+    }
+
+    private void run() {
+        try {
+            serve();
+        } catch (IOException | RuntimeException e) {
+            Log.error("Proxy stopped: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) closeQuietly(key);
+            try {
+                selector.close();
+            } catch (IOException ignore) { /* nothing left to release */ }
+            stopped.countDown();
+        }
+    }
+
+    private void serve() throws IOException {
+        boolean accepting = true;
+        while (true) {
+            selector.select(TICK_MILLIS);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (!key.isValid()) continue;
+                Object peer = key.attachment();
+                if (peer == null) {
+                    accept();
+                } else if (peer instanceof Client) {
+                    Client c = (Client) peer;
+                    try {
+                        if (key.isReadable()) readClient(c);
+                        if (!c.closed && key.isWritable()) markDirty(c);
+                    } catch (IOException | RuntimeException e) {
+                        Log.error("Client handling error: " + e.getMessage());
+                        closeClient(c);
+                    }
+                } else {
+                    Link l = (Link) peer;
+                    try {
+                        if (key.isConnectable()) connected(l);
+                        if (!l.closed && key.isReadable()) readLink(l);
+                        if (!l.closed && key.isWritable()) markDirty(l);
+                    } catch (IOException e) {
+                        linkFailed(l, e.getMessage());
+                    }
+                }
+            }
+            probe(System.nanoTime());
+            flushDirty();
+
+            if (closing) return;
+            if (stopping) {
+                if (accepting) {
+                    server.close(); // no new clients; existing ones finish what they sent
+                    accepting = false;
+                }
+                closeIdleClients();
+                if (clients == 0) return;
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            try {
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Client c = new Client(ch, (InetSocketAddress) ch.getRemoteAddress());
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                clients++;
+                Log.info("Accepted connection from " + ch.getRemoteAddress());
+            } catch (IOException e) {
+                Log.error("Client setup error: " + e.getMessage());
+                closeQuietly(ch);
+            }
+        }
+    }
+
+    private void readClient(Client c) throws IOException {
+        if (c.in.read(c.channel) < 0) {
+            closeClient(c);
+            return;
+        }
+        relay(c);
+    }
+
+    // Relays every complete frame the client has sent; a trailing partial frame stays buffered
+    private void relay(Client c) throws IOException {
+        if (!c.negotiated) {
+            int format = c.in.negotiate();
+            if (format == FrameDecoder.NEED_MORE) return;
+            c.negotiated = true;
+            if (format == FrameDecoder.COMPACT) {
+                c.format = COMPACT;
+                scratch.clear();
+                CompactRequest.writeHello(scratch);
+                c.append(scratch.flip()); // acknowledge
+                markDirty(c);
+            }
+        }
+        ByteBuffer frame;
+        while ((frame = c.in.next()) != null) {
+            int at = ProxyFrames.requestIdOffset(frame, view, vec);
+            if (at < 0) {
+                scratch.clear();
+                ProxyFrames.malformedReply(frame, view, vec, true, scratch);
+                c.append(scratch.flip());
+                markDirty(c);
+                continue;
+            }
+            if (!LIMITER.tryAcquire(c.source)) { // over its limit: never reaches a backend
+                scratch.clear();
+                Response.encode(scratch, 0, Calculator.ERR_RATE_LIMITED,
+                        frame.getShort(frame.position() + at));
+                c.append(scratch.flip());
+                markDirty(c);
+                continue;
+            }
+            Pending p = free.isEmpty() ? new Pending() : free.pop();
+            p.frame.clear();
+            p.frame.put(frame).flip();
+            p.idAt = at;
+            p.client = c;
+            p.clientId = p.frame.getShort(at);
+            p.format = c.format;
+            p.tries = 0;
+            c.inFlight++;
+            forward(p);
+        }
+    }
+
+    // Sends p to the backend the router picks, or answers it with error 125 if it cannot go anywhere
+    private void forward(Pending p) {
+        while (p.tries++ < MAX_TRIES) {
+            Backend b = router.pick(p.client.routeKey);
+            if (b == null) break;
+            Link link = link(b, p.format);
+            if (link == null) continue; // connect failed at once; b is down now
+            int id = link.allocate(p);
+            if (id < 0) break;
+            p.frame.putShort(p.idAt, (short) id);
+            link.append(p.frame.duplicate());
+            markDirty(link);
+            b.outstanding++;
+            b.requests++;
+            return;
+        }
+        scratch.clear();
+        Response.encode(scratch, 0, Calculator.ERR_UNAVAILABLE, p.clientId);
+        reply(p, scratch.flip());
+    }
+
+    // Hands a reply back to p's client (RequestID already restored) and recycles p
+    private void reply(Pending p, ByteBuffer frame) {
+        Client c = p.client;
+        c.inFlight--;
+        if (!c.closed) {
+            c.append(frame);
+            markDirty(c);
+        }
+        p.client = null;
+        free.push(p);
+    }
+
+    // The backend connection for format, opened (non-blocking) if there is none
+    private Link link(Backend b, int format) {
+        Link l = links[b.index][format];
+        if (l != null) return l;
+        l = new Link(b, format);
+        try {
+            l.channel = SocketChannel.open();
+            l.channel.configureBlocking(false);
+            l.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean done = l.channel.connect(b.address);
+            l.key = l.channel.register(selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, l);
+            l.connected = done;
+        } catch (IOException e) {
+            closeQuietly(l.channel);
+            b.down("connect failed: " + e.getMessage());
+            return null;
+        }
+        if (format == COMPACT) {
+            scratch.clear();
+            CompactRequest.writeHello(scratch);
+            l.append(scratch.flip());
+            l.hello = ByteBuffer.allocate(CompactRequest.HELLO_LEN);
+        }
+        links[b.index][format] = l;
+        return l;
+    }
+
+    private void connected(Link l) throws IOException {
+        l.channel.finishConnect(); // throws if refused
+        l.connected = true;
+        markDirty(l); // requests queued while connecting; also settles interest ops
+    }
+
+    private void readLink(Link l) throws IOException {
+        if (l.hello != null && l.hello.hasRemaining()) {
+            if (l.channel.read(l.hello) < 0) throw new IOException("connection closed");
+            if (l.hello.hasRemaining()) return;
+            if (!CompactRequest.isHello(l.hello, 0)) throw new IOException("backend does not take compact requests");
+        }
+        if (l.in.read(l.channel) < 0) throw new IOException("connection closed");
+        ByteBuffer frame;
+        while ((frame = l.in.next()) != null) {
+            int at = ProxyFrames.replyIdOffset(frame);
+            if (at < 0) throw new IOException("malformed reply");
+            int id = Short.toUnsignedInt(frame.getShort(frame.position() + at));
+            Pending p = l.slots[id];
+            if (p == null) continue; // a probe given up on
+            l.slots[id] = null;
+            l.inFlight--;
+            if (p.client == null) {
+                l.backend.probeAnswered();
+                free.push(p);
+                continue;
+            }
+            l.backend.outstanding--;
+            frame.putShort(frame.position() + at, p.clientId);
+            reply(p, frame);
+        }
+    }
+
+    // Closes l and resends everything it had outstanding elsewhere
+    private void linkFailed(Link l, String why) {
+        if (l.closed) return;
+        l.closed = true;
+        closeQuietly(l.key);
+        closeQuietly(l.channel);
+        links[l.backend.index][l.format] = null;
+        l.backend.down(why);
+        for (int id = 0; id < l.slots.length && l.inFlight > 0; id++) {
+            Pending p = l.slots[id];
+            if (p == null) continue;
+            l.slots[id] = null;
+            l.inFlight--;
+            if (p.client == null) {
+                l.backend.probeId = -1;
+                free.push(p);
+            } else {
+                l.backend.outstanding--;
+                forward(p);
+            }
+        }
+    }
+
+    // Health: expire unanswered probes, send due ones (down backends included: that is how they
+    // come back), and move requests off a backend the probes have just taken down.
+    private void probe(long now) {
+        for (Backend b : backends) {
+            if (b.probeExpired(now)) {
+                Link l = links[b.index][LEGACY];
+                if (l != null && l.slots[b.probeId] != null && l.slots[b.probeId].client == null) {
+                    free.push(l.slots[b.probeId]);
+                    l.slots[b.probeId] = null;
+                    l.inFlight--;
+                }
+                b.probeFailed("no answer to health probe within " + Backend.PROBE_TIMEOUT_MILLIS + " ms");
+                if (!b.healthy()) {
+                    for (Link dead : links[b.index]) {
+                        if (dead != null) linkFailed(dead, "health probes unanswered");
+                    }
+                }
+            }
+            if (!b.probeDue(now)) continue;
+            Link l = link(b, LEGACY);
+            if (l == null) {
+                b.probeFailed("connect failed");
+                b.probeSent(-1, now); // schedules the next attempt
+                continue;
+            }
+            Pending p = free.isEmpty() ? new Pending() : free.pop();
+            int id = l.allocate(p);
+            if (id < 0) {
+                free.push(p);
+                continue;
+            }
+            p.client = null;
+            p.frame.clear();
+            Request.encode(p.frame, (byte) 0, 0, 0, (short) id); // 0 + 0
+            p.frame.flip();
+            l.append(p.frame.duplicate());
+            markDirty(l);
+            b.probeSent(id, now);
+        }
+    }
+
+    private void markDirty(Peer p) {
+        if (!p.dirty && !p.closed) {
+            p.dirty = true;
+            dirty.add(p);
+        }
+    }
+
+    // One write per socket with anything gathered; interest ops follow what is left
+    private void flushDirty() {
+        Peer p;
+        while ((p = dirty.poll()) != null) {
+            p.dirty = false;
+            if (p.closed) continue;
+            boolean link = p instanceof Link;
+            try {
+                if (link && !((Link) p).connected) continue; // OP_CONNECT still registered
+                if (p.out.position() > 0) {
+                    p.out.flip();
+                    p.channel.write(p.out);
+                    p.out.compact();
+                }
+                int ops = p.out.position() > 0 ? SelectionKey.OP_WRITE : 0;
+                // A client with too many replies waiting is not read until it takes some
+                if (link || p.out.position() <= HIGH_WATER) ops |= SelectionKey.OP_READ;
+                p.key.interestOps(ops);
+            } catch (IOException e) {
+                if (link) {
+                    linkFailed((Link) p, e.getMessage());
+                } else {
+                    closeClient((Client) p);
+                }
+            }
+        }
+    }
+
+    // Draining: closes clients with nothing in flight, nothing buffered and nothing more to read
+    private void closeIdleClients() {
+        for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+            if (!key.isValid() || !(key.attachment() instanceof Client)) continue;
+            Client c = (Client) key.attachment();
+            if (c.inFlight > 0 || c.in.buffered() > 0 || c.out.position() > 0) continue;
+            try {
+                if (c.in.read(c.channel) > 0) {
+                    relay(c); // more requests: serve them before closing
+                    continue;
+                }
+            } catch (IOException e) {
+                // closing anyway
+            }
+            closeClient(c);
+        }
+    }
+
+    private void closeClient(Client c) {
+        if (c.closed) return;
+        c.closed = true;
+        clients--;
+        try {
+            Log.info("Closed connection from " + c.channel.getRemoteAddress());
+        } catch (IOException ignore) { /* address no longer available */ }
+        closeQuietly(c.key);
+        closeQuietly(c.channel);
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        if (key == null) return;
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignore) { /* already closed */ }
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        if (ch == null) return;
+        try {
+            ch.close();
+        } catch (IOException ignore) { /* already closed */ }
+    }
+
+    @Override
+    public void stopAccepting() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        return stopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        selector.wakeup();
+        try {
+            stopped.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.info("Backends: " + Arrays.toString(backends));
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// UDP front of CalcProxy: one Selector thread, the proxy's public port, and one connected
+// DatagramChannel per backend.
+//
+// Each request is forwarded with a RequestID from its backend's 65536-slot table, which remembers
+// the client's address and original ID until the reply comes back (or TIMEOUT_MILLIS pass: UDP
+// clients retransmit on their own, and a retransmission simply goes out as a new request). The
+// reply's ID is restored and it is sent to the client from the proxy's port. Malformed requests
+// are answered by the proxy as ServerUDP would; requests that find no healthy backend get error 125.
+// -Dcalc.rate is enforced here, per client address, before forwarding (see ProxyTCP).
+// Nothing is queued: a datagram the kernel cannot take right now is dropped, as it would be on
+// the wire.
+final class ProxyUDP implements ServerLifecycle {
+    static final long TIMEOUT_MILLIS = Long.getLong("calc.proxy.timeout.ms", 2000L);
+    private static final long TICK_MILLIS = 50;
+    private static final int BURST = 256; // datagrams read from one socket per wake-up
+    private static final RateLimiter LIMITER = RateLimiter.fromProperties();
+
+    private final int port;
+    private final Backend[] backends;
+    private final Router router;
+    private final Upstream[] upstreams;
+    private DatagramChannel front;
+    private Selector selector;
+    private Thread loop;
+    private volatile boolean stopping;
+    private volatile boolean closing;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // Loop thread state
+    private final RequestView view = new RequestView();
+    private final VectorFrame vec = new VectorFrame();
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(ProxyFrames.MAX_DATAGRAM);
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(ProxyFrames.MAX_FRAME);
+    private long dropped;
+
+    ProxyUDP(int port, List<Backend> backends, Router router) {
+        this.port = port;
+        this.backends = backends.toArray(new Backend[0]);
+        this.router = router;
+        this.upstreams = new Upstream[this.backends.length];
+    }
+
+    // The proxy's socket towards one backend and the requests outstanding on it, by RequestID
+    private static final class Upstream {
+        final Backend backend;
+        final DatagramChannel channel;
+        final InetSocketAddress[] clients = new InetSocketAddress[1 << 16]; // null: slot free
+        final short[] clientIds = new short[1 << 16];
+        final long[] sentNanos = new long[1 << 16];
+        // In-flight IDs in send order, linked through their slots, so timeouts are found at the
+        // oldest end instead of by scanning every slot
+        final int[] older = new int[1 << 16];
+        final int[] newer = new int[1 << 16];
+        int oldest = -1, newest = -1;
+        int inFlight; // client requests
+        int nextId;
+
+        Upstream(Backend backend, DatagramChannel channel) {
+            this.backend = backend;
+            this.channel = channel;
+        }
+
+        int allocate(InetSocketAddress client, short clientId, long now) {
+            for (int k = 0; k < clients.length; k++) {
+                int id = nextId;
+                nextId = (nextId + 1) & 0xFFFF;
+                if (clients[id] == null && id != backend.probeId) {
+                    clients[id] = client;
+                    clientIds[id] = clientId;
+                    sentNanos[id] = now;
+                    older[id] = newest;
+                    newer[id] = -1;
+                    if (newest >= 0) newer[newest] = id; else oldest = id;
+                    newest = id;
+                    inFlight++;
+                    return id;
+                }
+            }
+            return -1;
+        }
+
+        void release(int id) {
+            clients[id] = null;
+            if (older[id] >= 0) newer[older[id]] = newer[id]; else oldest = newer[id];
+            if (newer[id] >= 0) older[newer[id]] = older[id]; else newest = older[id];
+            inFlight--;
+            backend.outstanding--;
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        front = DatagramChannel.open();
+        try {
+            if (ServerLifecycle.reusePort()) front.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            front.bind(new InetSocketAddress(port));
+            front.configureBlocking(false);
+        } catch (IOException e) {
+            front.close();
+            throw e;
+        }
+        selector = Selector.open();
+        front.register(selector, SelectionKey.OP_READ);
+        for (int i = 0; i < backends.length; i++) {
+            DatagramChannel ch = DatagramChannel.open();
+            ch.connect(backends[i].address);
+            ch.configureBlocking(false);
+            upstreams[i] = new Upstream(backends[i], ch);
+            ch.register(selector, SelectionKey.OP_READ, upstreams[i]);
+        }
+        loop = new Thread(this::run, "proxy-udp");
+        loop.start();
+        Log.info("UDP proxy listening on port " + port + " (" + router.policy().name().toLowerCase(Locale.ROOT)
+                + " routing over " + backends.length + " backends)");
+    }
+
+    private void run() {
+        try {
+            serve();
+        } catch (IOException | RuntimeException e) {
+            Log.error("Proxy stopped: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException ignore) { /* already closed */ }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignore) { /* nothing left to release */ }
+            if (dropped > 0) Log.info(dropped + " datagrams dropped (socket buffer full)");
+            stopped.countDown();
+        }
+    }
+
+    private void serve() throws IOException {
+        SelectionKey frontKey = front.keyFor(selector);
+        boolean drained = false; // stopping, and the public port has been read empty
+        while (true) {
+            selector.select(TICK_MILLIS);
+            selector.selectedKeys().clear();
+            // Replies first: they free slots (and are cheap to check when there are none)
+            for (Upstream up : upstreams) relayReplies(up);
+            if (!drained) drained = relayRequests() && stopping;
+            long now = System.nanoTime();
+            for (Upstream up : upstreams) expire(up, now);
+
+            if (closing) return;
+            if (drained) {
+                frontKey.interestOps(0);
+                int inFlight = 0;
+                for (Upstream up : upstreams) inFlight += up.inFlight;
+                if (inFlight == 0) return;
+            }
+        }
+    }
+
+    // Forwards up to BURST client datagrams; true if the port has been read empty
+    private boolean relayRequests() throws IOException {
+        for (int n = 0; n < BURST; n++) {
+            buf.clear();
+            InetSocketAddress from = (InetSocketAddress) front.receive(buf);
+            if (from == null) return true;
+            buf.flip();
+            int at = ProxyFrames.requestIdOffset(buf, view, vec);
+            if (at < 0) {
+                scratch.clear();
+                ProxyFrames.malformedReply(buf, view, vec, false, scratch);
+                send(scratch.flip(), from);
+                continue;
+            }
+            short clientId = buf.getShort(at);
+            if (!LIMITER.tryAcquire(from.getAddress().hashCode())) { // over its limit: never forwarded
+                scratch.clear();
+                Response.encode(scratch, 0, Calculator.ERR_RATE_LIMITED, clientId);
+                send(scratch.flip(), from);
+                continue;
+            }
+            Backend b = router.pick(Router.key(from));
+            Upstream up = b == null ? null : upstreams[b.index];
+            int id = up == null ? -1 : up.allocate(from, clientId, System.nanoTime());
+            if (id < 0) {
+                scratch.clear();
+                Response.encode(scratch, 0, Calculator.ERR_UNAVAILABLE, clientId);
+                send(scratch.flip(), from);
+                continue;
+            }
+            b.outstanding++;
+            b.requests++;
+            buf.putShort(at, (short) id);
+            try {
+                if (up.channel.write(buf) == 0) {
+                    up.release(id);
+                    dropped++;
+                }
+            } catch (IOException e) {
+                up.release(id);
+                b.down(e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private void relayReplies(Upstream up) {
+        Backend b = up.backend;
+        for (int n = 0; n < BURST; n++) {
+            buf.clear();
+            try {
+                if (up.channel.read(buf) <= 0) return;
+            } catch (PortUnreachableException e) {
+                b.down("port unreachable");
+                continue;
+            } catch (IOException e) {
+                b.down(e.getMessage());
+                return;
+            }
+            buf.flip();
+            int at = ProxyFrames.replyIdOffset(buf);
+            if (at < 0) continue;
+            int id = Short.toUnsignedInt(buf.getShort(at));
+            if (id == b.probeId) {
+                b.probeAnswered();
+                continue;
+            }
+            InetSocketAddress client = up.clients[id];
+            if (client == null) continue; // expired, or a duplicate
+            buf.putShort(at, up.clientIds[id]);
+            up.release(id);
+            send(buf, client);
+        }
+    }
+
+    // Frees requests that went unanswered for TIMEOUT_MILLIS, and runs the backend's health probe
+    private void expire(Upstream up, long now) {
+        Backend b = up.backend;
+        long timeout = TIMEOUT_MILLIS * 1_000_000L;
+        while (up.oldest >= 0 && now - up.sentNanos[up.oldest] > timeout) up.release(up.oldest);
+        if (b.probeExpired(now)) {
+            b.probeFailed("no answer to health probe within " + Backend.PROBE_TIMEOUT_MILLIS + " ms");
+        }
+        if (!b.probeDue(now)) return;
+        int id = up.nextId;
+        for (int k = 0; up.clients[id] != null; k++) {
+            if (k == up.clients.length) return; // every ID in flight: probe again next tick
+            id = (id + 1) & 0xFFFF;
+        }
+        up.nextId = (id + 1) & 0xFFFF;
+        scratch.clear();
+        Request.encode(scratch, (byte) 0, 0, 0, (short) id); // 0 + 0
+        b.probeSent(id, now);
+        try {
+            up.channel.write(scratch.flip());
+        } catch (IOException e) {
+            b.probeFailed(e.getMessage());
+        }
+    }
+
+    private void send(ByteBuffer reply, InetSocketAddress to) {
+        try {
+            if (front.send(reply, to) == 0) dropped++;
+        } catch (IOException e) {
+            dropped++;
+        }
+    }
+
+    @Override
+    public void stopAccepting() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        return stopped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        selector.wakeup();
+        try {
+            stopped.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.info("Backends: " + Arrays.toString(backends));
+    }
+}
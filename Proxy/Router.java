@@ -0,0 +1,87 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+// Picks the backend for a request among those currently healthy.
+//
+//   least: fewest requests outstanding; ties go round-robin so an idle pool still spreads load
+//   hash:  consistent hashing of the client's address and port onto a ring of VNODES points per
+//          backend, so one client keeps hitting one backend and a backend going down moves only
+//          its own clients (to the next healthy point clockwise)
+final class Router {
+    enum Policy { LEAST, HASH }
+
+    private static final int VNODES = 100;
+
+    private final Backend[] backends;
+    private final Policy policy;
+    private final int[] ringHash;    // sorted points on the ring
+    private final int[] ringBackend; // backend index at each point
+    private int next;                // LEAST: where the tie-break scan starts
+
+    Router(List<Backend> backends, Policy policy) {
+        this.backends = backends.toArray(new Backend[0]);
+        this.policy = policy;
+        int n = this.backends.length * VNODES;
+        long[] points = new long[n];
+        for (int b = 0, k = 0; b < this.backends.length; b++) {
+            for (int v = 0; v < VNODES; v++, k++) {
+                int h = mix((this.backends[b].name + "#" + v).hashCode());
+                points[k] = ((long) h << 32) | b; // sort by hash, keep the backend alongside
+            }
+        }
+        Arrays.sort(points);
+        ringHash = new int[n];
+        ringBackend = new int[n];
+        for (int k = 0; k < n; k++) {
+            ringHash[k] = (int) (points[k] >> 32);
+            ringBackend[k] = (int) points[k];
+        }
+    }
+
+    Policy policy() {
+        return policy;
+    }
+
+    // Backend for a request from the client identified by key, or null if none is healthy.
+    Backend pick(int key) {
+        return policy == Policy.HASH ? byHash(key) : leastOutstanding();
+    }
+
+    private Backend leastOutstanding() {
+        Backend best = null;
+        int n = backends.length;
+        for (int i = 0; i < n; i++) {
+            Backend b = backends[(next + i) % n];
+            if (b.healthy() && (best == null || b.outstanding < best.outstanding)) best = b;
+        }
+        next = (next + 1) % n;
+        return best;
+    }
+
+    private Backend byHash(int key) {
+        int h = mix(key);
+        int at = Arrays.binarySearch(ringHash, h);
+        if (at < 0) at = -at - 1;
+        for (int i = 0; i < ringHash.length; i++) {
+            Backend b = backends[ringBackend[(at + i) % ringHash.length]];
+            if (b.healthy()) return b;
+        }
+        return null;
+    }
+
+    // Spreads nearby keys (consecutive ports, similar names) around the whole ring (murmur3 finalizer)
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // Client key: its address and port
+    static int key(InetSocketAddress client) {
+        return client.getAddress().hashCode() * 31 + client.getPort();
+    }
+}
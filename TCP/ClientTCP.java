@@ -1,26 +1,65 @@
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class ClientTCP {
-    private static final String[] OP_NAMES = {
-            "subtraction", "addition", "and", "or", "multiplication", "division"
-    };
-
     public static void main(String[] args) {
-        if (args.length != 3 || !"ClientTCP".equals(args[0])) {
-            System.err.println("Usage: prog ClientTCP <server> <port>");
+        boolean pipelined = args.length == 5 && "pipeline".equals(args[3]);
+        boolean load = args.length >= 4 && "load".equals(args[3]);
+        if ((args.length != 3 && !pipelined && !load) || !"ClientTCP".equals(args[0])) {
+            System.err.println("Usage: prog ClientTCP <server> <port> [pipeline <depth> | " + LoadGenerator.usage() + "]");
             System.err.println("Example: java ClientTCP ClientTCP tux055 10023");
+            System.err.println("Example: java ClientTCP ClientTCP tux055 10023 pipeline 64 < ops.txt");
+            System.err.println("Example: java ClientTCP ClientTCP tux055 10023 load --conns 32 --mode open --rate 50000 --duration 30");
             System.exit(1);
         }
         String host = args[1];
         int port = Integer.parseInt(args[2]);
 
+        if (load) {
+            try {
+                LoadGenerator gen = LoadGenerator.fromArgs(args, 4);
+                if (gen.pool() > 0) {
+                    // Every load thread calls into one shared client; RequestIDs are the pool's
+                    try (PooledClientTCP client = new PooledClientTCP(host, port, gen.pool(), gen.compactFormat(), 1_000)) {
+                        gen.run(() -> new LoadGenerator.Endpoint() {
+                            @Override
+                            public int call(byte opCode, int operand1, int operand2, short requestId) throws IOException {
+                                try {
+                                    return client.compute(opCode, operand1, operand2).errorCode & 0xFF;
+                                } catch (SocketTimeoutException e) {
+                                    return -1;
+                                }
+                            }
+
+                            @Override
+                            public void close() { /* the pool outlives each thread */ }
+                        });
+                    }
+                } else {
+                    gen.run(() -> new LoadEndpointTCP(host, port, gen.compactFormat()));
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Bad load options: " + e.getMessage());
+                System.exit(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
         try (Socket sock = new Socket(host, port)) {
             sock.setTcpNoDelay(true);
-            InputStream in = sock.getInputStream();
+            if (pipelined) {
+                runPipelined(sock, Integer.parseInt(args[4]), 1 + new Random().nextInt(5000));
+                return;
+            }
+            DataInputStream in = new DataInputStream(sock.getInputStream());
             OutputStream out = sock.getOutputStream();
             Scanner sc = new Scanner(System.in);
 
@@ -33,6 +72,8 @@ public class ClientTCP {
 
             long rttMin = Long.MAX_VALUE, rttMax = Long.MIN_VALUE, rttSum = 0L;
             long rttCount = 0L;
+            ByteBuffer reqBuf = ByteBuffer.allocate(256); // reused per request
+            byte[] resp = new byte[256];                  // reused per response (TML is one byte)
 
             while (true) {
                 System.out.print("OpCode (0..5) or 'q': ");
@@ -56,39 +97,20 @@ public class ClientTCP {
                 System.out.print("Operand2 (int): ");
                 int op2 = readInt(sc);
 
-                String opName = OP_NAMES[opCode]; // exactly as spec expects
-
-                // Build op name bytes: UTF-16 with BOM
-                byte[] opNameBytes = ByteUtils.utf16WithBOM(opName);
-                int nameLen = opNameBytes.length;
-
                 // Request ID (2 bytes, wraps at 65535)
                 int reqId = reqIdCounter & 0xFFFF;
                 reqIdCounter++;
 
-                // TML = 1 +1 +4 +4 +2 +1 + nameLen
-                int tml = 1 + 1 + 4 + 4 + 2 + 1 + nameLen;
-
-                ByteArrayOutputStream msg = new ByteArrayOutputStream(tml);
-                msg.write(tml & 0xFF);           // 1) TML (1 byte)
-                msg.write(opCode & 0xFF);        // 2) Op Code (1 byte)
-                ByteUtils.putIntBE(msg, op1);    // 3) Operand1 (4 bytes)
-                ByteUtils.putIntBE(msg, op2);    // 4) Operand2 (4 bytes)
-                ByteUtils.putShortBE(msg, reqId);// 5) Request ID (2 bytes)
-                msg.write(nameLen & 0xFF);       // 6) Op Name Length (1 byte)
-                try {
-                    msg.write(opNameBytes);      // 7) Op Name (UTF-16 with BOM)
-                } catch (IOException ignore) { /* ByteArrayOutputStream won't throw here */ }
-
-                byte[] reqBytes = msg.toByteArray();
+                reqBuf.clear();
+                Request.encode(reqBuf, (byte) opCode, op1, op2, (short) reqId);
 
                 // iii) display request bytes in hex
                 System.out.println("Request (hex):");
-                ByteUtils.hexdump(reqBytes);
+                System.out.println(Hex.toHex(reqBuf.array(), reqBuf.position()));
 
                 // iv) send & time RTT
                 long t0 = System.nanoTime();
-                out.write(reqBytes);
+                out.write(reqBuf.array(), 0, reqBuf.position());
                 out.flush();
 
                 // v) read response (exactly 8 bytes)
@@ -97,34 +119,29 @@ public class ClientTCP {
                     System.out.println("Server closed connection.");
                     break;
                 }
-                byte[] respRest = ByteUtils.readFully(in, tmlResp - 1);
-                byte[] resp = new byte[tmlResp];
                 resp[0] = (byte) tmlResp;
-                System.arraycopy(respRest, 0, resp, 1, respRest.length);
+                in.readFully(resp, 1, tmlResp - 1);
 
                 long t1 = System.nanoTime();
                 long rttMicros = (t1 - t0) / 1000L;
 
                 // v) display response hex
                 System.out.println("Response (hex):");
-                ByteUtils.hexdump(resp);
+                System.out.println(Hex.toHex(resp, tmlResp));
 
                 // vi) parse & display response human-friendly
-                // Layout: [0]=TML(8), [1..4]=Result, [5]=Error, [6..7]=ReqID
-                int result = ((resp[1] & 0xFF) << 24) | ((resp[2] & 0xFF) << 16) | ((resp[3] & 0xFF) << 8) | (resp[4] & 0xFF);
-                int err = resp[5] & 0xFF;
-                int respReqId = ((resp[6] & 0xFF) << 8) | (resp[7] & 0xFF);
-
-String humanOp; 
-switch (opCode) { 
-    case 0: humanOp = "-"; break; 
-    case 1: humanOp = "+"; break; 
-    case 2: humanOp = "&"; break; 
-    case 3: humanOp = "|"; break; 
-    case 4: humanOp = "*"; break; 
-    case 5: humanOp = "/"; break; 
-    default: humanOp = "?"; break; 
-}
+                Response parsed;
+                try {
+                    parsed = Response.parse(resp, tmlResp);
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("Failed to parse response: " + ex.getMessage());
+                    continue;
+                }
+                int result = parsed.result;
+                int err = parsed.errorCode & 0xFF;
+                int respReqId = Short.toUnsignedInt(parsed.requestId);
+
+                String humanOp = opSymbol(opCode);
                 System.out.printf("ReqID=%d | %d %s %d => %d | Error=%d (%s)%n",
                         respReqId, op1, humanOp, op2, result, err, err == 0 ? "Ok" : "Invalid");
 
@@ -151,6 +168,135 @@ switch (opCode) {
         }
     }
 
+    // Non-interactive batch mode: reads "opCode operand1 operand2" lines from stdin and keeps up to
+    // `depth` requests in flight on the one connection. A reader thread matches each reply to its
+    // request by RequestID. Requests are only flushed when the window fills or stdin has nothing
+    // more ready, so a burst of ops goes out in as few TCP segments as possible.
+    private static void runPipelined(Socket sock, int depth, int firstReqId) throws IOException {
+        if (depth < 1 || depth > 0xFFFF) throw new IllegalArgumentException("depth must be 1..65535");
+        InputStream in = sock.getInputStream();
+        OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+        BufferedReader lines = new BufferedReader(new InputStreamReader(System.in));
+
+        Semaphore window = new Semaphore(depth);
+        AtomicReferenceArray<long[]> pending = new AtomicReferenceArray<>(0x10000); // {op, a, b, t0}
+        long[] stats = {Long.MAX_VALUE, Long.MIN_VALUE, 0L, 0L};                      // min, max, sum, count
+        ByteBuffer reqBuf = ByteBuffer.allocate(256);                                 // reused per request
+        AtomicBoolean readerGone = new AtomicBoolean(); // no more replies will be matched
+
+        Thread reader = new Thread(() -> {
+            FrameDecoder decoder = new FrameDecoder();
+            try {
+                while (decoder.read(in) >= 0) {
+                    long t1 = System.nanoTime();
+                    ByteBuffer frame;
+                    while ((frame = decoder.next()) != null) {
+                        Response resp = Response.parse(frame);
+                        int result = resp.result;
+                        int err = resp.errorCode & 0xFF;
+                        int respReqId = Short.toUnsignedInt(resp.requestId);
+
+                        long[] req = pending.getAndSet(respReqId, null);
+                        if (req == null) {
+                            System.out.printf("ReqID=%d | unexpected reply (no request in flight)%n", respReqId);
+                            continue;
+                        }
+                        long rttMicros = (t1 - req[3]) / 1000L;
+                        System.out.printf("ReqID=%d | %d %s %d => %d | Error=%d (%s) | RTT %d µs%n",
+                                respReqId, (int) req[1], opSymbol((int) req[0]), (int) req[2], result, err,
+                                err == 0 ? "Ok" : "Invalid", rttMicros);
+                        stats[0] = Math.min(stats[0], rttMicros);
+                        stats[1] = Math.max(stats[1], rttMicros);
+                        stats[2] += rttMicros;
+                        stats[3]++;
+                        window.release();
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Receive error: " + e.getMessage());
+            } finally {
+                // EOF (server closed or drained), I/O error or a bad reply: nothing will release
+                // the window any more, so wake the sender instead of leaving it blocked
+                readerGone.set(true);
+                window.release(depth);
+            }
+        }, "pipeline-reader");
+        reader.start();
+
+        long start = System.nanoTime();
+        int reqIdCounter = firstReqId;
+        String line;
+        while ((line = lines.readLine()) != null) {
+            String[] f = line.trim().split("\\s+");
+            if (f.length != 3) continue; // blank or malformed line
+            int opCode, op1, op2;
+            try {
+                opCode = Integer.parseInt(f[0]);
+                op1 = Integer.parseInt(f[1]);
+                op2 = Integer.parseInt(f[2]);
+            } catch (NumberFormatException e) {
+                System.err.println("Skipping bad line: " + line);
+                continue;
+            }
+            if (opCode < 0 || opCode > 5) {
+                System.err.println("Skipping bad opcode: " + line);
+                continue;
+            }
+
+            if (!window.tryAcquire()) {
+                out.flush(); // window is full: push what we have and wait for replies
+                window.acquireUninterruptibly();
+            }
+            if (readerGone.get()) {
+                window.release(); // the permit taken for this request, which is not sent
+                break;
+            }
+            int reqId = reqIdCounter & 0xFFFF;
+            reqIdCounter++;
+            pending.set(reqId, new long[]{opCode, op1, op2, System.nanoTime()});
+            reqBuf.clear();
+            Request.encode(reqBuf, (byte) opCode, op1, op2, (short) reqId);
+            out.write(reqBuf.array(), 0, reqBuf.position());
+            if (!lines.ready()) out.flush();
+        }
+        // Wait for every outstanding reply, then half-close so the server ends the connection.
+        if (!readerGone.get()) out.flush();
+        window.acquireUninterruptibly(depth);
+        long elapsedNanos = System.nanoTime() - start;
+        if (!sock.isClosed() && !sock.isOutputShutdown()) sock.shutdownOutput();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int unanswered = 0;
+        for (int id = 0; id < pending.length(); id++) {
+            if (pending.get(id) != null) unanswered++;
+        }
+        if (unanswered > 0) System.out.printf("%d request(s) unanswered: connection lost%n", unanswered);
+        if (stats[3] > 0) {
+            double avg = stats[2] / (double) stats[3];
+            System.out.printf("RTT stats over %d requests → min=%,d µs | avg=%.1f µs | max=%,d µs%n",
+                    stats[3], stats[0], avg, stats[1]);
+            System.out.printf("Throughput: %.0f requests/s (depth %d)%n",
+                    stats[3] / (elapsedNanos / 1e9), depth);
+        }
+        System.out.println("Bye.");
+    }
+
+    private static String opSymbol(int opCode) {
+        switch (opCode) {
+            case 0: return "-";
+            case 1: return "+";
+            case 2: return "&";
+            case 3: return "|";
+            case 4: return "*";
+            case 5: return "/";
+            default: return "?";
+        }
+    }
+
     private static int readInt(Scanner sc) {
         while (true) {
             String s = sc.next();
@@ -0,0 +1,148 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Framed stream of Friend records, for bulk transfer over one persistent TCP connection.
+//
+// Wire format: a sequence of batches, each
+//   Count(4) | Length(4) | Length bytes holding Count records back to back, as the FriendEncoder wrote them
+// and a batch with Count 0 (and Length 0) ends the stream. A whole batch goes out in one write and
+// is pulled in with one readFully, so the syscall cost is per batch rather than per record, and
+// the decoder parses records from memory whatever the codec's read pattern.
+//
+// Writer and Reader each keep one growable batch buffer for the life of the stream; beyond what
+// the FriendEncoder/FriendDecoder create themselves, moving a record allocates nothing.
+public final class FriendStream {
+    public static final int DEFAULT_BATCH = 1024;           // records per batch
+    static final int MAX_BATCH_BYTES = 64 * 1024 * 1024;    // refuse larger batches from the network
+
+    private FriendStream() {}
+
+    public static final class Writer implements Closeable {
+        private static final int HEADER = 8;
+
+        private final FriendEncoder encoder;
+        private final OutputStream out;
+        private final int batchRecords;
+        private byte[] buf = new byte[64 * 1024]; // header room, then the batch's records
+        private int length = HEADER; // bytes used in buf
+        private int count;           // records in buf
+        private long records, bytes;
+
+        public Writer(OutputStream out, FriendEncoder encoder, int batchRecords) {
+            if (batchRecords < 1) throw new IllegalArgumentException("batchRecords must be >= 1");
+            this.encoder = encoder;
+            this.out = out;
+            this.batchRecords = batchRecords;
+        }
+
+        public void write(Friend friend) throws IOException {
+            byte[] rec = encoder.encode(friend);
+            if (length + rec.length > buf.length) {
+                sendBatch();
+                if (HEADER + rec.length > buf.length) buf = Arrays.copyOf(buf, Math.max(HEADER + rec.length, buf.length * 2));
+            }
+            System.arraycopy(rec, 0, buf, length, rec.length);
+            length += rec.length;
+            records++;
+            if (++count == batchRecords) sendBatch();
+        }
+
+        // Sends the records batched so far.
+        public void flush() throws IOException {
+            sendBatch();
+            out.flush();
+        }
+
+        private void sendBatch() throws IOException {
+            if (count == 0) return;
+            putInt(buf, 0, count);
+            putInt(buf, 4, length - HEADER);
+            out.write(buf, 0, length); // header and records in one write
+            bytes += length;
+            count = 0;
+            length = HEADER;
+        }
+
+        private static void putInt(byte[] b, int at, int v) {
+            b[at] = (byte) (v >>> 24);
+            b[at + 1] = (byte) (v >>> 16);
+            b[at + 2] = (byte) (v >>> 8);
+            b[at + 3] = (byte) v;
+        }
+
+        public long records() { return records; }
+        public long bytes()   { return bytes; }
+
+        // Sends what is left and the end-of-stream batch; the socket stays open for the caller.
+        @Override
+        public void close() throws IOException {
+            sendBatch();
+            putInt(buf, 0, 0);
+            putInt(buf, 4, 0);
+            out.write(buf, 0, HEADER);
+            out.flush();
+            bytes += HEADER;
+        }
+    }
+
+    public static final class Reader {
+        private final FriendDecoder decoder;
+        private final DataInputStream in;
+        private final BatchInput batch = new BatchInput();
+        private byte[] buf = new byte[64 * 1024];
+        private int left; // records of the current batch not read yet
+        private long records, bytes;
+
+        public Reader(InputStream in, FriendDecoder decoder) {
+            this.decoder = decoder;
+            this.in = new DataInputStream(new BufferedInputStream(in, 8));
+        }
+
+        // The next record, or null at the end of the stream.
+        public Friend read() throws IOException {
+            while (left == 0) {
+                if (batch.available() != 0) throw new IOException("Batch length does not match its records");
+                int count = in.readInt();
+                int length = in.readInt();
+                if (count == 0 && length == 0) {
+                    bytes += 8;
+                    return null;
+                }
+                if (count < 0 || length < 0 || length > MAX_BATCH_BYTES) {
+                    throw new IOException("Bad batch header: count " + count + ", length " + length);
+                }
+                if (length > buf.length) buf = new byte[Math.max(length, buf.length * 2)];
+                in.readFully(buf, 0, length);
+                batch.reset(buf, length);
+                left = count;
+                bytes += 8 + length;
+            }
+            left--;
+            records++;
+            return decoder.decode(batch);
+        }
+
+        public long records() { return records; }
+        public long bytes()   { return bytes; }
+    }
+
+    // ByteArrayInputStream re-pointed at each batch instead of allocated per batch.
+    private static final class BatchInput extends ByteArrayInputStream {
+        BatchInput() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] data, int length) {
+            buf = data;
+            pos = 0;
+            count = length;
+            mark = 0;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+// LoadGenerator endpoint over one persistent TCP connection: encode into a reused buffer, one
+// write, then read exactly the 8-byte reply. Nothing is allocated per call. In compact mode the
+// connection opens with the CompactRequest HELLO and every request is a 13-byte compact frame.
+public class LoadEndpointTCP implements LoadGenerator.Endpoint {
+    private final Socket sock;
+    private final OutputStream out;
+    private final DataInputStream in;
+    private final ByteBuffer req = ByteBuffer.allocate(256);
+    private final byte[] resp = new byte[Response.LENGTH];
+    private final ByteBuffer respView = ByteBuffer.wrap(resp);
+    private final boolean compact;
+
+    public LoadEndpointTCP(String host, int port, boolean compact) throws IOException {
+        sock = new Socket(host, port);
+        sock.setTcpNoDelay(true);
+        out = sock.getOutputStream();
+        InputStream raw = sock.getInputStream();
+        in = new DataInputStream(raw);
+        this.compact = compact;
+        if (compact) negotiate();
+    }
+
+    private void negotiate() throws IOException {
+        req.clear();
+        CompactRequest.writeHello(req);
+        out.write(req.array(), 0, req.position());
+        out.flush();
+        byte[] ack = new byte[CompactRequest.HELLO_LEN];
+        try {
+            in.readFully(ack);
+        } catch (IOException e) {
+            sock.close();
+            throw new IOException("Server does not support the compact format");
+        }
+        if (!CompactRequest.isHello(ByteBuffer.wrap(ack), 0)) {
+            sock.close();
+            throw new IOException("Unexpected compact-format acknowledgement");
+        }
+    }
+
+    @Override
+    public int call(byte opCode, int operand1, int operand2, short requestId) throws IOException {
+        req.clear();
+        if (compact) {
+            CompactRequest.encode(req, opCode, operand1, operand2, requestId);
+        } else {
+            Request.encode(req, opCode, operand1, operand2, requestId);
+        }
+        out.write(req.array(), 0, req.position());
+        out.flush();
+
+        in.readFully(resp);
+        if ((resp[0] & 0xFF) != Response.LENGTH) throw new IOException("Bad response TML " + (resp[0] & 0xFF));
+        if (respView.getShort(6) != requestId) throw new IOException("Reply for wrong RequestID");
+        return resp[5] & 0xFF;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sock.close();
+    }
+}
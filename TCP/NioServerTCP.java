@@ -0,0 +1,505 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Non-blocking ServerTCP mode: one acceptor plus a small fixed set of Selector event loops.
+// Every connection is pinned to one loop and keeps its own read buffer, so partial TML frames
+// are put back together across reads and many clients are served concurrently.
+//
+// Staged (with a StagedPipeline): the loops only frame requests and write replies. Each complete
+// frame is copied into a Call and submitted to the compute workers, which decode, log, compute and
+// encode it (ServerTCP.serve); finished Calls come back to their loop, which writes every reply a
+// connection has ready in one write. While a loop has -Dcalc.stage.queue requests in flight it
+// stops reading the connections with frames waiting. Replies to one connection's pipelined
+// requests may then come back in a different order than the requests; clients match RequestIDs.
+public class NioServerTCP implements ServerLifecycle {
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final StagedPipeline pipeline; // null: loops compute requests themselves
+    private ServerSocketChannel server;
+
+    public NioServerTCP(int port, int loopCount) throws IOException {
+        this(port, loopCount, null);
+    }
+
+    public NioServerTCP(int port, int loopCount, StagedPipeline pipeline) throws IOException {
+        if (loopCount < 1) throw new IllegalArgumentException("eventLoops must be >= 1");
+        this.port = port;
+        this.pipeline = pipeline;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop(Selector.open(), pipeline);
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        try {
+            if (ServerLifecycle.reusePort()) ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            ch.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        server = ch;
+        if (pipeline != null) pipeline.start();
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        new Thread(this::acceptLoop, "nio-accept").start();
+        Log.info("Server listening on port " + port + (pipeline == null ? " (nio, " + loops.length + " event loops) ..."
+                : " (staged, " + loops.length + " event loops, " + pipeline.workers() + " compute workers) ..."));
+    }
+
+    // Blocking accept on its own thread; connections are dealt round-robin to the loops.
+    private void acceptLoop() {
+        int next = 0;
+        while (true) {
+            SocketChannel ch;
+            try {
+                ch = server.accept();
+            } catch (IOException e) {
+                if (server.isOpen()) Log.error("Accept failed: " + e.getMessage());
+                return; // closed by stopAccepting()
+            }
+            try {
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Log.info("Accepted connection from " + ch.getRemoteAddress());
+            } catch (IOException e) {
+                Log.error("Client setup error: " + e.getMessage());
+                closeQuietly(ch);
+                continue;
+            }
+            loops[next].adopt(ch);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // Closes the listening socket; each loop then closes its connections one by one as they go
+    // idle (every reply written, no partial request buffered, nothing more to read).
+    @Override
+    public void stopAccepting() {
+        try {
+            server.close();
+        } catch (IOException ignore) { /* already closed */ }
+        for (EventLoop loop : loops) loop.drain();
+    }
+
+    @Override
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        for (EventLoop loop : loops) {
+            if (!loop.drained.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) loop.shutdown();
+        if (pipeline != null) pipeline.stop();
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignore) { /* already closing */ }
+    }
+
+    // Replies queued for a connection beyond which the loop stops reading from it until the client
+    // has taken them: a client that pipelines without reading costs at most this much memory.
+    // (The blocking and threaded modes get the same effect from their blocking writes.)
+    private static final int HIGH_WATER = Integer.getInteger("calc.tcp.highWater", 64 * 1024);
+
+    // Per-connection state, owned by exactly one event loop thread.
+    private static final class Connection {
+        final SocketChannel channel;
+        final int source; // client address hash, for rate limiting
+        final SocketAddress remote; // for the JFR stage events (RequestEvents)
+        final FrameDecoder in = new FrameDecoder();
+        final ArrayDeque<BufferPool.Lease> out = new ArrayDeque<>(); // pooled direct buffers
+        int queued; // bytes left in out
+        boolean negotiated; // request format (legacy or compact) settled by the first bytes
+        // Staged mode only
+        int inFlight;       // requests with the compute workers
+        boolean stalled;    // frames left in `in` because the loop's lane was full
+        BufferPool.Lease ready; // replies back from the workers, not yet written; null when none
+
+        Connection(SocketChannel channel, int source, SocketAddress remote) {
+            this.channel = channel;
+            this.source = source;
+            this.remote = remote;
+        }
+    }
+
+    // Per-worker decode state for staged mode
+    private static final class Scratch {
+        final RequestView view = new RequestView();
+        final VectorFrame vec = new VectorFrame();
+        final StringBuilder log = new StringBuilder(256);
+    }
+
+    // One request on its way through the compute workers (staged mode); recycled by its loop.
+    private static final class Call extends StagedPipeline.Job {
+        private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+        ByteBuffer frame = ByteBuffer.allocate(255); // grown for a longer compact frame
+        final ByteBuffer reply = ByteBuffer.allocate(Math.max(Response.LENGTH, VectorFrame.MAX_REPLY_LEN));
+        SelectionKey key;
+        Connection conn;
+
+        @Override
+        protected void compute() {
+            Scratch s = SCRATCH.get();
+            reply.clear();
+            ServerTCP.serve(frame, reply, s.view, s.vec, s.log, conn.source, conn.remote);
+            reply.flip();
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+        // While draining, idle connections are looked for this often even if nothing happens
+        private static final long DRAIN_POLL_MILLIS = 50;
+
+        private final Selector selector;
+        final CountDownLatch drained = new CountDownLatch(1);
+        private volatile boolean draining;
+        private volatile boolean closing;
+        private int open; // registered connections
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final RequestView view = new RequestView();
+        private final VectorFrame vec = new VectorFrame();
+        private final StringBuilder log = new StringBuilder(256);
+        // Replies for one read. Malformed frames can be 1 byte and still get an 8-byte reply, so
+        // decodeFrames writes it out whenever it could not take one more reply of any kind.
+        // Direct, so the socket write needs no copy into a JDK temporary buffer.
+        private final ByteBuffer replies = ByteBuffer.allocateDirect(FrameDecoder.DEFAULT_CAPACITY);
+        // Queued replies handed to one gathering write
+        private final ByteBuffer[] gather = new ByteBuffer[64];
+
+        // Staged mode only
+        private final StagedPipeline.Lane<Call> lane;
+        private final ArrayDeque<Call> free = new ArrayDeque<>();
+        private final ArrayDeque<SelectionKey> stalled = new ArrayDeque<>(); // waiting for the lane to drain
+        private final ArrayDeque<SelectionKey> ready = new ArrayDeque<>();   // replies back, not yet written
+
+        EventLoop(Selector selector, StagedPipeline pipeline) {
+            this.selector = selector;
+            this.lane = pipeline == null ? null : pipeline.lane(StagedPipeline.DEFAULT_CAPACITY, selector::wakeup);
+        }
+
+        // Called from the acceptor thread; registration happens on the loop thread itself.
+        void adopt(SocketChannel ch) {
+            pending.add(ch);
+            selector.wakeup();
+        }
+
+        // Called from the shutdown thread
+        void drain() {
+            draining = true;
+            selector.wakeup();
+        }
+
+        // After the drain deadline: the loop closes whatever connections are left
+        void shutdown() {
+            closing = true;
+            drain();
+        }
+
+        @Override
+        public void run() {
+            loop();
+            SocketChannel ch;
+            while ((ch = pending.poll()) != null) closeQuietly(ch);
+            for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) close(key);
+            try {
+                selector.close();
+            } catch (IOException ignore) { /* nothing left to release */ }
+            drained.countDown();
+        }
+
+        private void loop() {
+            while (true) {
+                try {
+                    if (lane != null && !lane.prepareToWait()) {
+                        selector.selectNow(); // replies already back from the workers
+                    } else if (draining) {
+                        selector.select(DRAIN_POLL_MILLIS);
+                    } else {
+                        selector.select();
+                    }
+                    if (lane != null) lane.doneWaiting();
+                } catch (IOException e) {
+                    Log.error("Selector error: " + e.getMessage());
+                    return;
+                }
+                registerPending();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isReadable()) read(key);
+                        if (key.isValid() && key.isWritable()) flush(key);
+                    } catch (IOException | RuntimeException e) {
+                        Log.error("Client handling error: " + e.getMessage());
+                        close(key);
+                    }
+                }
+                if (lane != null) collect();
+                if (closing) return;
+                if (draining) {
+                    closeIdle();
+                    if (open == 0 && pending.isEmpty()) return;
+                }
+            }
+        }
+
+        // Closes every connection with nothing left to do: no reply waiting to be written, no
+        // partial request buffered, and nothing more on the socket. A request the client sends
+        // after that final read finds the connection closed and goes to the next server.
+        private void closeIdle() {
+            for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+                if (!key.isValid()) continue;
+                Connection conn = (Connection) key.attachment();
+                if (!conn.out.isEmpty() || conn.in.buffered() > 0 || conn.inFlight > 0) continue;
+                try {
+                    int n = conn.in.read(conn.channel);
+                    if (n > 0) {
+                        decodeFrames(key);
+                        flush(key);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    // closing anyway
+                }
+                close(key);
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel ch;
+            while ((ch = pending.poll()) != null) {
+                try {
+                    int source = ch.socket().getInetAddress().hashCode();
+                    Connection conn = new Connection(ch, source, ch.socket().getRemoteSocketAddress());
+                    ch.register(selector, SelectionKey.OP_READ, conn);
+                    open++;
+                    Metrics.connectionOpened();
+                } catch (ClosedChannelException e) {
+                    closeQuietly(ch);
+                }
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            RequestEvents.Receive receive = new RequestEvents.Receive();
+            receive.begin();
+            int n = conn.in.read(conn.channel);
+            if (n < 0) {
+                close(key);
+                return;
+            }
+            if (RequestEvents.sampleReceive()) RequestEvents.commit(receive, -1, -1, n, conn.remote);
+            decodeFrames(key);
+            flush(key);
+        }
+
+        // Serve every complete TML frame currently buffered; a trailing partial frame stays in the
+        // decoder. Replies to all frames that arrived in one read are queued as one buffer, so
+        // pipelined requests cost a single write. Staged, the frames go to the workers instead.
+        private void decodeFrames(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            replies.clear();
+            if (!conn.negotiated) {
+                int format = conn.in.negotiate();
+                if (format == FrameDecoder.NEED_MORE) return;
+                conn.negotiated = true;
+                if (format == FrameDecoder.COMPACT) CompactRequest.writeHello(replies); // acknowledge
+            }
+            if (lane != null) {
+                submitFrames(key, conn);
+            } else {
+                ByteBuffer frame;
+                while ((frame = conn.in.next()) != null) {
+                    if (replies.remaining() < VectorFrame.MAX_REPLY_LEN) { // full: out it goes
+                        replies.flip();
+                        write(conn, replies);
+                        replies.clear();
+                    }
+                    ServerTCP.serve(frame, replies, view, vec, log, conn.source, conn.remote);
+                }
+            }
+            replies.flip();
+            write(conn, replies);
+        }
+
+        // Writes replies[position, limit) to the connection, queueing what the socket cannot take.
+        private static void write(Connection conn, ByteBuffer replies) throws IOException {
+            if (!replies.hasRemaining()) return;
+            if (conn.out.isEmpty()) {
+                RequestEvents.Send send = new RequestEvents.Send();
+                send.begin();
+                int n = conn.channel.write(replies); // usually takes everything; no copy needed
+                if (RequestEvents.sampleSend()) RequestEvents.commit(send, -1, -1, n, conn.remote);
+                if (!replies.hasRemaining()) return;
+            }
+            conn.queued += replies.remaining();
+            BufferPool.Lease spill = BufferPool.DEFAULT.acquire(replies.remaining());
+            spill.buffer.put(replies).flip();
+            conn.out.add(spill);
+        }
+
+        // Copies each complete frame into a Call for the compute workers. If the lane fills up, the
+        // rest stay in the decoder and the connection is parked (not read) until Calls come back.
+        private void submitFrames(SelectionKey key, Connection conn) throws IOException {
+            while (!lane.isFull()) {
+                ByteBuffer frame = conn.in.next();
+                if (frame == null) return;
+                Call call = free.isEmpty() ? new Call() : free.pop();
+                if (frame.remaining() > call.frame.capacity()) call.frame = ByteBuffer.allocate(frame.remaining());
+                call.frame.clear();
+                call.frame.put(frame).flip();
+                call.key = key;
+                call.conn = conn;
+                conn.inFlight++;
+                lane.submit(call);
+            }
+            if (conn.in.buffered() > 0 && !conn.stalled) {
+                conn.stalled = true;
+                stalled.add(key);
+            }
+        }
+
+        // Staged mode: takes back every finished Call, writes each connection's replies with one
+        // write, then resumes connections that were parked while the lane was full.
+        private void collect() {
+            Call call;
+            while ((call = lane.poll()) != null) {
+                Connection conn = call.conn;
+                conn.inFlight--;
+                if (call.failed()) { // compute() threw: error 127, so the client is not left waiting
+                    call.reply.clear();
+                    Response.encode(call.reply, 0, Calculator.ERR_INVALID, ServerTCP.requestId(call.frame, view));
+                    call.reply.flip();
+                }
+                if (call.key.isValid() && conn.ready != null
+                        && conn.ready.buffer.remaining() < call.reply.remaining()) {
+                    writeReady(call.key); // full: out it goes
+                }
+                if (call.key.isValid()) { // not closed by that write
+                    if (conn.ready == null) {
+                        conn.ready = BufferPool.DEFAULT.acquire(FrameDecoder.DEFAULT_CAPACITY);
+                        ready.add(call.key);
+                    }
+                    conn.ready.buffer.put(call.reply);
+                }
+                call.key = null;
+                call.conn = null;
+                free.push(call);
+            }
+            SelectionKey key;
+            while ((key = ready.poll()) != null) {
+                writeReady(key);
+            }
+            while (!lane.isFull() && (key = stalled.poll()) != null) {
+                ((Connection) key.attachment()).stalled = false;
+                if (!key.isValid()) continue;
+                try {
+                    decodeFrames(key);
+                    flush(key);
+                } catch (IOException | RuntimeException e) {
+                    Log.error("Client handling error: " + e.getMessage());
+                    close(key);
+                }
+            }
+        }
+
+        private void writeReady(SelectionKey key) {
+            Connection conn = (Connection) key.attachment();
+            if (!key.isValid() || conn.ready == null) return; // already written, or closed
+            // write() spills whatever the socket does not take, so the lease is always emptied:
+            // back to the pool until the next reply, rather than one pinned per idle connection
+            BufferPool.Lease lease = conn.ready;
+            conn.ready = null;
+            lease.buffer.flip();
+            try {
+                write(conn, lease.buffer);
+                flush(key);
+            } catch (IOException e) {
+                Log.error("Client handling error: " + e.getMessage());
+                close(key);
+            } finally {
+                lease.release();
+            }
+        }
+
+        private void flush(SelectionKey key) throws IOException {
+            Connection conn = (Connection) key.attachment();
+            // Every queued buffer (up to gather.length) goes out in one gathering write
+            while (!conn.out.isEmpty()) {
+                int n = 0;
+                for (BufferPool.Lease l : conn.out) {
+                    gather[n++] = l.buffer;
+                    if (n == gather.length) break;
+                }
+                RequestEvents.Send send = new RequestEvents.Send();
+                send.begin();
+                int written = (int) conn.channel.write(gather, 0, n);
+                if (RequestEvents.sampleSend()) RequestEvents.commit(send, -1, -1, written, conn.remote);
+                conn.queued -= written;
+                boolean full = gather[n - 1].hasRemaining(); // socket send buffer is full
+                while (!conn.out.isEmpty() && !conn.out.peek().buffer.hasRemaining()) conn.out.poll().release();
+                if (full) break;
+            }
+            // Backpressure: above the high-water mark, wait for the client to drain its replies
+            // before reading (and queueing replies to) any more of its requests; a stalled
+            // connection is not read until its buffered frames have been submitted
+            int ops = conn.out.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+            if (conn.queued <= HIGH_WATER && !conn.stalled) ops |= SelectionKey.OP_READ;
+            key.interestOps(ops);
+        }
+
+        private void close(SelectionKey key) {
+            if (!key.isValid()) return;
+            key.cancel();
+            open--;
+            Metrics.connectionClosed();
+            Connection conn = (Connection) key.attachment();
+            try {
+                Log.info("Closed connection from " + conn.channel.getRemoteAddress());
+            } catch (IOException ignore) { /* address no longer available */ }
+            closeQuietly(conn.channel);
+            // Replies that will never be written go back to the pool
+            BufferPool.Lease l;
+            while ((l = conn.out.poll()) != null) l.release();
+            conn.queued = 0;
+            if (conn.ready != null) {
+                conn.ready.release();
+                conn.ready = null;
+            }
+        }
+    }
+}
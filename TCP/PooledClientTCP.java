@@ -0,0 +1,280 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Embeddable, thread-safe calculator client over a pool of persistent TCP connections.
+//
+//   - compute() blocks for the reply; computeAsync() returns a CompletableFuture completed by the
+//     connection's reader thread. Any number of threads may call either at once.
+//   - Requests are spread round-robin over the pool and pipelined: each connection keeps many
+//     requests in flight, filed under their RequestID and matched to replies by that ID alone, so
+//     callers never wait for each other's round trips, only for a short write.
+//   - A connection the server closes (EOF: a restart or handover, see ServerLifecycle) has its
+//     in-flight requests sent once more over the pool; the operations are pure, so a request the
+//     server did read is safe to repeat. On any other failure they complete exceptionally with
+//     the IOException. Either way the next request routed to it reconnects (at most once per backoff period,
+//     doubling up to MAX_BACKOFF while the server stays down; meanwhile the other connections
+//     take its requests).
+//   - A request not answered within the timeout completes with TimeoutException (0 = no limit).
+//
+// RequestIDs are per connection, so each connection can have up to 65536 requests in flight.
+public class PooledClientTCP implements Closeable {
+    static final long MIN_BACKOFF_NANOS = 100_000_000L;   // 100 ms
+    static final long MAX_BACKOFF_NANOS = 5_000_000_000L;
+
+    private final String host;
+    private final int port;
+    private final boolean compact;
+    private final long timeoutMillis;
+    private final Slot[] slots;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    public PooledClientTCP(String host, int port, int connections) {
+        this(host, port, connections, false, 5_000);
+    }
+
+    public PooledClientTCP(String host, int port, int connections, boolean compact, long timeoutMillis) {
+        if (connections < 1) throw new IllegalArgumentException("connections must be >= 1");
+        this.host = host;
+        this.port = port;
+        this.compact = compact;
+        this.timeoutMillis = timeoutMillis;
+        slots = new Slot[connections];
+        for (int i = 0; i < connections; i++) slots[i] = new Slot();
+    }
+
+    // Sends one request and waits for its reply. Throws SocketTimeoutException when the timeout
+    // passes, or the connection's IOException if it failed.
+    public Response compute(byte opCode, int operand1, int operand2) throws IOException {
+        try {
+            return computeAsync(opCode, operand1, operand2).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a reply");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof TimeoutException) throw new SocketTimeoutException("No reply within " + timeoutMillis + " ms");
+            throw new IOException(cause);
+        }
+    }
+
+    // Sends one request; the future completes on the reply, or exceptionally with an IOException
+    // (connection failed or could not be opened) or a TimeoutException.
+    public CompletableFuture<Response> computeAsync(byte opCode, int operand1, int operand2) {
+        Call call = new Call(opCode, operand1, operand2);
+        if (timeoutMillis > 0) call.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        dispatch(call);
+        return call;
+    }
+
+    private void dispatch(Call call) {
+        if (closed) {
+            call.completeExceptionally(new IOException("Client closed"));
+            return;
+        }
+        int first = Math.floorMod(next.getAndIncrement(), slots.length);
+        IOException failure = null;
+        // Prefer the round-robin connection; skip ones that are down and still backing off
+        for (int k = 0; k < slots.length; k++) {
+            Connection conn;
+            try {
+                conn = slots[(first + k) % slots.length].connection();
+            } catch (IOException e) {
+                failure = e;
+                continue;
+            }
+            conn.send(call);
+            return;
+        }
+        call.completeExceptionally(failure);
+    }
+
+    // Fails the request, or re-dispatches it if its connection was closed by the server and it
+    // has not been resent yet. The caller owns call (it has just taken it out of a connection).
+    private void retryOrFail(Call call, IOException cause) {
+        if (cause instanceof EOFException && !call.resent && !closed) {
+            call.resent = true;
+            dispatch(call);
+        } else {
+            call.completeExceptionally(cause);
+        }
+    }
+
+    // A request and the future its caller holds, in one object
+    private static final class Call extends CompletableFuture<Response> {
+        final byte opCode;
+        final int operand1, operand2;
+        boolean resent; // only touched by whoever holds the call (see retryOrFail)
+
+        Call(byte opCode, int operand1, int operand2) {
+            this.opCode = opCode;
+            this.operand1 = operand1;
+            this.operand2 = operand2;
+        }
+    }
+
+    public int connections() {
+        return slots.length;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Slot s : slots) s.close();
+    }
+
+    // One pool position: the current connection (null while down) and its reconnect backoff.
+    private final class Slot {
+        private volatile Connection current;
+        private long retryAt;   // guarded by this
+        private long backoff = MIN_BACKOFF_NANOS;
+        private IOException lastFailure;
+
+        Connection connection() throws IOException {
+            Connection c = current;
+            if (c != null && !c.dead) return c;
+            synchronized (this) {
+                c = current;
+                if (c != null && !c.dead) return c;
+                if (closed) throw new IOException("Client closed");
+                long now = System.nanoTime();
+                if (lastFailure != null && now - retryAt < 0) throw lastFailure;
+                try {
+                    c = new Connection();
+                } catch (IOException e) {
+                    lastFailure = new IOException("Cannot connect to " + host + ":" + port + ": " + e.getMessage(), e);
+                    retryAt = now + backoff;
+                    backoff = Math.min(MAX_BACKOFF_NANOS, backoff * 2);
+                    throw lastFailure;
+                }
+                lastFailure = null;
+                backoff = MIN_BACKOFF_NANOS;
+                current = c;
+                return c;
+            }
+        }
+
+        synchronized void close() {
+            if (current != null) current.fail(new IOException("Client closed"));
+        }
+    }
+
+    private final class Connection {
+        final Socket sock;
+        final OutputStream out;
+        final InputStream in;
+        final ByteBuffer req = ByteBuffer.allocate(256); // guarded by this: a legacy request is at most 255 bytes
+        final AtomicReferenceArray<Call> inFlight = new AtomicReferenceArray<>(1 << 16);
+        final AtomicInteger nextId = new AtomicInteger();
+        volatile IOException cause; // why the connection died, set before dead
+        volatile boolean dead;
+
+        Connection() throws IOException {
+            sock = new Socket(host, port);
+            try {
+                sock.setTcpNoDelay(true);
+                out = sock.getOutputStream();
+                in = sock.getInputStream();
+                if (compact) negotiate();
+            } catch (IOException e) {
+                sock.close();
+                throw e;
+            }
+            Thread reader = new Thread(this::receiveLoop, "tcp-pool-rx-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void negotiate() throws IOException {
+            req.clear();
+            CompactRequest.writeHello(req);
+            out.write(req.array(), 0, req.position());
+            byte[] ack = new byte[CompactRequest.HELLO_LEN];
+            for (int n = 0; n < ack.length; ) {
+                int r = in.read(ack, n, ack.length - n);
+                if (r < 0) throw new IOException("Server does not support the compact format");
+                n += r;
+            }
+            if (!CompactRequest.isHello(ByteBuffer.wrap(ack), 0)) throw new IOException("Unexpected compact-format acknowledgement");
+        }
+
+        void send(Call call) {
+            // File the request under a free RequestID
+            int id = -1;
+            for (int k = 0; k < 1 << 16; k++) {
+                int candidate = nextId.getAndIncrement() & 0xFFFF;
+                if (inFlight.compareAndSet(candidate, null, call)) {
+                    id = candidate;
+                    break;
+                }
+            }
+            if (id < 0) {
+                call.completeExceptionally(new IOException("65536 requests in flight on one connection"));
+                return;
+            }
+            final int reqId = id;
+            call.whenComplete((r, e) -> inFlight.compareAndSet(reqId, call, null)); // timed out: free the ID
+            try {
+                synchronized (this) {
+                    req.clear();
+                    if (compact) {
+                        CompactRequest.encode(req, call.opCode, call.operand1, call.operand2, (short) reqId);
+                    } else {
+                        Request.encode(req, call.opCode, call.operand1, call.operand2, (short) reqId);
+                    }
+                    out.write(req.array(), 0, req.position());
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            // Filed just after fail() swept the table: nobody else will answer it
+            if (dead && inFlight.compareAndSet(reqId, call, null)) retryOrFail(call, cause);
+        }
+
+        private void receiveLoop() {
+            FrameDecoder decoder = new FrameDecoder();
+            try {
+                while (decoder.read(in) >= 0) {
+                    ByteBuffer frame;
+                    while ((frame = decoder.next()) != null) {
+                        Response r = Response.parse(frame);
+                        Call call = inFlight.getAndSet(Short.toUnsignedInt(r.requestId), null);
+                        if (call != null) call.complete(r); // null: timed out already
+                    }
+                }
+                fail(new EOFException("Server closed the connection"));
+            } catch (IOException e) {
+                fail(e);
+            } catch (IllegalArgumentException e) {
+                fail(new IOException("Bad reply: " + e.getMessage()));
+            }
+        }
+
+        // Takes the connection out of service; everything still waiting on it is resent or failed.
+        void fail(IOException failure) {
+            cause = failure;
+            dead = true;
+            try {
+                sock.close();
+            } catch (IOException ignore) { /* closing anyway */ }
+            for (int i = 0; i < inFlight.length(); i++) {
+                Call call = inFlight.getAndSet(i, null);
+                if (call != null) retryOrFail(call, failure);
+            }
+        }
+    }
+}
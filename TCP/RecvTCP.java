@@ -1,16 +1,26 @@
 import java.io.*;   // for Input/OutputStream
 import java.net.*;  // for Socket and ServerSocket
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class RecvTCP {
 
   public static void main(String args[]) throws Exception {
 
-    if (args.length != 1)  // Test for correct # of args
-      throw new IllegalArgumentException("Parameter(s): <Port>");
+    boolean stream = args.length == 2 && args[1].equals("stream");
+    if (args.length != 1 && !stream)  // Test for correct # of args
+      throw new IllegalArgumentException("Parameter(s): <Port> [stream]");
 
     int port = Integer.parseInt(args[0]);   // Receiving Port
 	
     ServerSocket servSock = new ServerSocket(port);
+    if (stream) {
+      receiveStreams(servSock);
+      return;
+    }
     Socket clntSock = servSock.accept();
 
     // Receive binary-encoded friend
@@ -23,5 +33,64 @@ public class RecvTCP {
     clntSock.close();
     servSock.close();
   }
-}
 
+  // Bulk mode: any number of senders at once, each streaming FriendStream batches over its own
+  // connection on its own thread. Prints the aggregate rate every second while data flows, and
+  // each sender's totals when it finishes.
+  private static void receiveStreams(ServerSocket servSock) throws IOException {
+    LongAdder records = new LongAdder();
+    LongAdder bytes = new LongAdder();
+    AtomicInteger senders = new AtomicInteger();
+    ExecutorService pool = Executors.newCachedThreadPool();
+
+    Thread reporter = new Thread(() -> {
+      long lastRecords = 0, lastBytes = 0, last = System.nanoTime();
+      while (true) {
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          return;
+        }
+        long now = System.nanoTime(), r = records.sum(), b = bytes.sum();
+        double secs = (now - last) / 1e9;
+        if (r != lastRecords)
+          System.out.printf(Locale.US, "%d sender(s): %,.0f records/s, %.1f MB/s%n",
+              senders.get(), (r - lastRecords) / secs, (b - lastBytes) / 1e6 / secs);
+        lastRecords = r; lastBytes = b; last = now;
+      }
+    }, "rate-report");
+    reporter.setDaemon(true);
+    reporter.start();
+
+    System.out.println("Receiving Friend streams on port " + servSock.getLocalPort());
+    while (true) {
+      Socket clntSock = servSock.accept();
+      senders.incrementAndGet();
+      pool.execute(() -> {
+        try (Socket s = clntSock) {
+          FriendStream.Reader reader = new FriendStream.Reader(s.getInputStream(), new FriendDecoderBin());
+          long t0 = System.nanoTime(), doneRecords = 0, doneBytes = 0;
+          while (reader.read() != null) {
+            // Fold into the shared counters once per batch's worth, not per record
+            if (reader.records() - doneRecords >= FriendStream.DEFAULT_BATCH) {
+              records.add(reader.records() - doneRecords);
+              bytes.add(reader.bytes() - doneBytes);
+              doneRecords = reader.records();
+              doneBytes = reader.bytes();
+            }
+          }
+          records.add(reader.records() - doneRecords);
+          bytes.add(reader.bytes() - doneBytes);
+          double secs = (System.nanoTime() - t0) / 1e9;
+          System.out.printf(Locale.US, "%s: %,d records, %.1f MB in %.2f s (%,.0f records/s, %.1f MB/s)%n",
+              s.getRemoteSocketAddress(), reader.records(), reader.bytes() / 1e6, secs,
+              reader.records() / secs, reader.bytes() / 1e6 / secs);
+        } catch (IOException e) {
+          System.err.println("Stream from " + clntSock.getRemoteSocketAddress() + " failed: " + e.getMessage());
+        } finally {
+          senders.decrementAndGet();
+        }
+      });
+    }
+  }
+}
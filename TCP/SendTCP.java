@@ -1,12 +1,14 @@
 import java.io.*;   // for Input/OutputStream
 import java.net.*;  // for Socket
+import java.util.Locale;
 
 public class SendTCP {
 
   public static void main(String args[]) throws Exception {
 
-    if (args.length != 2)  // Test for correct # of args
-      throw new IllegalArgumentException("Parameter(s): <Destination> <Port>");
+    boolean stream = args.length >= 4 && args[2].equals("stream");
+    if (args.length != 2 && !(stream && args.length <= 5))  // Test for correct # of args
+      throw new IllegalArgumentException("Parameter(s): <Destination> <Port> [stream <records> [batch]]");
 
     InetAddress destAddr = InetAddress.getByName(args[0]);  // Destination address
     int destPort = Integer.parseInt(args[1]);               // Destination port
@@ -16,6 +18,14 @@ public class SendTCP {
     Friend friend = new Friend(1234567890987654L, "John Smith", 
 			       (short) 2360, 36830, false, true, false);
     
+    if (stream) {
+      long count = Long.parseLong(args[3]);
+      int batch = args.length == 5 ? Integer.parseInt(args[4]) : FriendStream.DEFAULT_BATCH;
+      sendStream(sock, friend, count, batch);
+      sock.close();
+      return;
+    }
+
     System.out.println("Display friend"); 
     System.out.println(friend); // Display friend just to check what we send
 
@@ -29,4 +39,19 @@ public class SendTCP {
     sock.close();
 
   }
+
+  // Bulk mode: count copies of friend over this one connection, batch records per write
+  // (see FriendStream), then the end-of-stream marker.
+  private static void sendStream(Socket sock, Friend friend, long count, int batch) throws IOException {
+    System.out.println("Streaming " + count + " Friends (Binary), " + batch + " per batch");
+    FriendStream.Writer writer = new FriendStream.Writer(sock.getOutputStream(), new FriendEncoderBin(), batch);
+    long t0 = System.nanoTime();
+    for (long i = 0; i < count; i++) writer.write(friend);
+    writer.close();
+    sock.shutdownOutput();
+    sock.getInputStream().read(); // wait for the receiver to close: everything was read
+    double secs = (System.nanoTime() - t0) / 1e9;
+    System.out.printf(Locale.US, "Sent %,d records, %.1f MB in %.2f s: %,.0f records/s, %.1f MB/s%n",
+        writer.records(), writer.bytes() / 1e6, secs, writer.records() / secs, writer.bytes() / 1e6 / secs);
+  }
 }
@@ -1,157 +1,301 @@
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.function.BooleanSupplier;
 
 public class ServerTCP {
-    // Error code per spec: 0 = OK, 127 = invalid message length (and we also use 127 for div-by-zero)
-    private static final int ERR_OK = 0;
-    private static final int ERR_BADLEN = 127;
+    // TCP rules, behind the optional result cache (-Dcalc.cache)
+    private static final ResultCache COMPUTE = ResultCache.fromProperties(Calculator.TCP_RULES);
+    // Per-client-address admission control (-Dcalc.rate)
+    private static final RateLimiter LIMITER = RateLimiter.fromProperties();
 
     public static void main(String[] args) {
-        if (args.length != 2 || !"ServerTCP".equals(args[0])) {
-            System.err.println("Usage: prog ServerTCP <port>");
+        if (args.length < 2 || args.length > 5 || !"ServerTCP".equals(args[0])) {
+            System.err.println("Usage: prog ServerTCP <port> [blocking | nio [eventLoops]"
+                    + " | staged [eventLoops [workers]] | virtual [maxConnections] | pool [threads]]");
             System.err.println("Example: java ServerTCP ServerTCP 10023");
+            System.err.println("Example: java ServerTCP ServerTCP 10023 nio 4");
+            System.err.println("Example: java ServerTCP ServerTCP 10023 staged 1 4");
+            System.err.println("Example: java ServerTCP ServerTCP 10023 virtual 10000");
             System.exit(1);
         }
         int port = Integer.parseInt(args[1]);
+        String mode = args.length >= 3 ? args[2] : "blocking";
+        Metrics.startEndpointIfConfigured("tcp");
 
-        try (ServerSocket server = new ServerSocket(port)) {
-            System.out.printf("Server listening on port %d ...%n", port);
-            while (true) {
-                try (Socket sock = server.accept()) {
-                    sock.setTcpNoDelay(true);
-                    System.out.println("Accepted connection from " + sock.getRemoteSocketAddress());
-                    handleClient(sock);
-                } catch (IOException e) {
-                    System.err.println("Client handling error: " + e.getMessage());
-                }
+        // Every mode runs until Ctrl-C / SIGTERM, then stops accepting and drains (ServerLifecycle)
+        ServerLifecycle server;
+        try {
+            switch (mode) {
+                case "blocking":
+                    // The original serial server: one client at a time, served to completion
+                    server = ThreadedServerTCP.platformPool(port, 1);
+                    break;
+                case "nio":
+                    server = new NioServerTCP(port, args.length >= 4 ? Integer.parseInt(args[3])
+                            : Math.max(1, Runtime.getRuntime().availableProcessors()));
+                    break;
+                case "staged":
+                    // Event loops only frame requests and write replies; workers compute
+                    server = new NioServerTCP(port, args.length >= 4 ? Integer.parseInt(args[3]) : 1,
+                            new StagedPipeline(args.length >= 5 ? Integer.parseInt(args[4])
+                                    : Runtime.getRuntime().availableProcessors(), "tcp"));
+                    break;
+                case "virtual":
+                    server = ThreadedServerTCP.virtualThreads(port, args.length >= 4 ? Integer.parseInt(args[3]) : 10_000);
+                    break;
+                case "pool":
+                    server = ThreadedServerTCP.platformPool(port, args.length >= 4 ? Integer.parseInt(args[3]) : 200);
+                    break;
+                default:
+                    System.err.println("Unknown mode: " + mode + " (expected blocking, nio, staged, virtual or pool)");
+                    System.exit(1);
+                    return;
             }
         } catch (IOException e) {
-            System.err.println("Bind/listen failed: " + e.getMessage());
+            Log.error("Server setup failed: " + e.getMessage());
+            return;
         }
+        ServerLifecycle.runUntilShutdown(server);
     }
 
-    private static void handleClient(Socket sock) throws IOException {
+    // Serves one connection until the client closes it. Once stopping reports true, it ends at the
+    // first point where nothing the client sent is left unanswered: no bytes waiting on the socket
+    // and no partial request buffered. The caller gives sock an SO_TIMEOUT so an idle read comes
+    // back to check.
+    static void handleClient(Socket sock, BooleanSupplier stopping) throws IOException {
         InputStream in = sock.getInputStream();
-        OutputStream out = sock.getOutputStream();
+        // Buffered so the replies to pipelined requests coalesce into one write
+        OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+        FrameDecoder decoder = new FrameDecoder();
+        RequestView view = new RequestView();
+        VectorFrame vec = new VectorFrame();
+        ByteBuffer reply = ByteBuffer.allocate(Math.max(Response.LENGTH, VectorFrame.MAX_REPLY_LEN));
+        StringBuilder log = new StringBuilder(256);
+        int source = sock.getInetAddress().hashCode();
+        SocketAddress remote = sock.getRemoteSocketAddress();
 
+        // Each read takes whatever the client has sent so far; every complete request in it is
+        // answered, and a trailing partial request waits for the next read.
+        boolean negotiated = false;
+        boolean waiting = false; // bytes already queued on the socket, so the next read will not block
+        int unflushed = 0;
         while (true) {
-            // Read 1 byte TML; if client closed, we’re done
-            int tml = in.read();
-            if (tml < 0) break; // connection closed
-
-            // Read the rest of the request
-            byte[] rest = ByteUtils.readFully(in, tml - 1);
-            byte[] full = new byte[tml];
-            full[0] = (byte) tml;
-            System.arraycopy(rest, 0, full, 1, rest.length);
+            if (stopping.getAsBoolean() && in.available() == 0 && decoder.buffered() == 0) break; // drained
+            RequestEvents.Receive receive = new RequestEvents.Receive();
+            receive.begin();
+            int n;
+            try {
+                n = decoder.read(in);
+            } catch (SocketTimeoutException e) {
+                if (stopping.getAsBoolean() && decoder.buffered() > 0) break; // partial request never completed
+                continue; // idle: look at stopping again
+            }
+            if (n < 0) break;
+            if (waiting && RequestEvents.sampleReceive()) RequestEvents.commit(receive, -1, -1, n, remote);
+            if (!negotiated) {
+                // The first bytes decide the request format: a compact HELLO, or a legacy request
+                int format = decoder.negotiate();
+                if (format == FrameDecoder.NEED_MORE) continue;
+                negotiated = true;
+                if (format == FrameDecoder.COMPACT) {
+                    reply.clear();
+                    CompactRequest.writeHello(reply);
+                    out.write(reply.array(), 0, reply.position());
+                    unflushed += reply.position();
+                }
+            }
+            ByteBuffer frame;
+            while ((frame = decoder.next()) != null) {
+                reply.clear();
+                serve(frame, reply, view, vec, log, source, remote);
+                out.write(reply.array(), 0, reply.position());
+                unflushed += reply.position();
+            }
+            // Only flush once no further request is already waiting, so every response for
+            // requests that arrived together goes back in a single write.
+            waiting = in.available() > 0;
+            if (!waiting) {
+                RequestEvents.Send send = new RequestEvents.Send();
+                send.begin();
+                out.flush();
+                if (RequestEvents.sampleSend()) RequestEvents.commit(send, -1, -1, unflushed, remote);
+                unflushed = 0;
+            }
+        }
+        if (decoder.buffered() > 0) {
+            throw new EOFException("Connection closed mid-request (" + decoder.buffered() + " bytes)");
+        }
+    }
 
-            // i) display request bytes in hex
-            System.out.println("Request (hex):");
-            ByteUtils.hexdump(full);
+    // Decode one complete TML-framed request in frame[position, limit), compute it and append the
+    // response to reply (8 bytes, or up to VectorFrame.MAX_REPLY_LEN for a vector request). Shared
+    // by every server mode so they stay byte-compatible. req and vec are the calling thread's
+    // reusable decoders; log is its reusable builder for the request's (sampled) log record.
+    // source identifies the client for rate limiting (its address hash; the IPv4 address itself);
+    // remote is its address as shown in the request's JFR stage events (RequestEvents).
+    static void serve(ByteBuffer frame, ByteBuffer reply, RequestView req, VectorFrame vec, StringBuilder log,
+                      int source, SocketAddress remote) {
+        long t0 = System.nanoTime();
+        int length = frame.remaining();
+        Metrics.bytesIn(length);
+        // One sampling decision per request; its lines go out as a single record so they stay
+        // together when several connections log at once. The record is built once the reply is
+        // encoded (frame is left untouched), so calc.Log times all of the logging.
+        if (!Log.sampleRequest()) log = null;
+        boolean hex = log != null && Log.enabled(Log.Level.TRACE);
+        if (log != null) log.setLength(0);
 
-            int error = ERR_OK;
-            int result = 0;
-            int reqId = 0;
-            try {
-                // Parse per spec
-                // Layout: [0]=TML
-                // [1]=OpCode
-                // [2..5]=Operand1 (int)
-                // [6..9]=Operand2 (int)
-                // [10..11]=RequestID (unsigned short)
-                // [12]=OpNameLen (L)
-                // [13..(13+L-1)]=OpName bytes (UTF-16 with BOM)
-                if (tml < 13) throw new IllegalArgumentException("TML too short");
+        if (!LIMITER.tryAcquire(source)) {
+            reject(frame, reply, req, log, hex, t0);
+            return;
+        }
+        boolean traced = RequestEvents.sampleRequest();
+        if (VectorFrame.isVector(frame)) {
+            serveVector(frame, reply, vec, log, hex, t0, traced, remote);
+            return;
+        }
 
-                int opCode = full[1] & 0xFF;
+        int error = Calculator.ERR_OK;
+        int result = 0;
+        int reqId = 0;
+        int opCode = -1;
+        RequestEvents.Decode decode = new RequestEvents.Decode();
+        decode.begin();
+        boolean valid = req.wrap(frame);
+        if (valid) {
+            reqId = Short.toUnsignedInt(req.requestId());
+            opCode = req.opCode() & 0xFF;
+        } else {
+            // Malformed (too short, or op name length disagrees with TML) → 127. The RequestID is
+            // still echoed whenever the fixed header arrived in full.
+            if (frame.remaining() >= RequestView.HEADER_LEN) reqId = Short.toUnsignedInt(req.requestId());
+            error = Calculator.ERR_INVALID;
+            Metrics.parseFailure();
+            Log.error("Parse/compute error: " + req.error());
+        }
+        if (traced) RequestEvents.commit(decode, opCode, reqId, length, remote);
 
-                int op1 = ((full[2] & 0xFF) << 24) | ((full[3] & 0xFF) << 16) | ((full[4] & 0xFF) << 8) | (full[5] & 0xFF);
-                int op2 = ((full[6] & 0xFF) << 24) | ((full[7] & 0xFF) << 16) | ((full[8] & 0xFF) << 8) | (full[9] & 0xFF);
+        if (valid) {
+            // TCP rules: division by zero and unknown opcodes are answered with error 127
+            RequestEvents.Compute compute = new RequestEvents.Compute();
+            compute.begin();
+            long packed = COMPUTE.apply(opCode, req.operand1(), req.operand2());
+            result = Calculator.result(packed);
+            error = Calculator.error(packed);
+            if (traced) RequestEvents.commit(compute, opCode, reqId, length, remote);
+        }
 
-                reqId = ((full[10] & 0xFF) << 8) | (full[11] & 0xFF);
+        // Build response: TML(1)=8, Result(4), Error(1), ReqID(2)
+        int start = reply.position();
+        RequestEvents.Encode encode = new RequestEvents.Encode();
+        encode.begin();
+        Response.encode(reply, result, (byte) error, (short) reqId);
+        if (traced) RequestEvents.commit(encode, opCode, reqId, reply.position() - start, remote);
 
-                int nameLen = full[12] & 0xFF;
-                int nameStart = 13;
-                int nameEnd = nameStart + nameLen; // exclusive
+        if (log != null) {
+            RequestEvents.Logging logging = new RequestEvents.Logging();
+            logging.begin();
+            // i) display request bytes in hex
+            if (hex) Hex.appendHex(log.append("Request (hex):\n"), frame).append('\n');
+            // ii) display request in a user-friendly way
+            if (valid) {
+                log.append("RequestID=").append(reqId).append(" | OpCode=").append(opCode).append(" | OpName=\"");
+                req.appendOpName(log).append("\" | Operands: ").append(req.operand1()).append(" ? ")
+                        .append(req.operand2()).append('\n');
+            }
+            if (hex) {
+                ByteBuffer written = reply.duplicate().limit(reply.position()).position(start);
+                Hex.appendHex(log.append("Response (hex):\n"), written).append('\n');
+            }
+            log.append("Responded: RequestID=").append(reqId).append(" | Result=").append(result)
+                    .append(" | Error=").append(error);
+            Log.debug(log.toString());
+            if (traced) RequestEvents.commit(logging, opCode, reqId, log.length(), remote);
+        }
+        Metrics.bytesOut(reply.position() - start);
+        Metrics.request(opCode, error, System.nanoTime() - t0);
+    }
 
-                if (nameEnd != tml) {
-                    // length mismatch against TML
-                    error = ERR_BADLEN;
-                }
+    // Over its rate limit: answered with error 126, RequestID echoed when readable, nothing computed.
+    private static void reject(ByteBuffer frame, ByteBuffer reply, RequestView req, StringBuilder log, boolean hex,
+                               long t0) {
+        short reqId = requestId(frame, req);
+        int start = reply.position();
+        Response.encode(reply, 0, Calculator.ERR_RATE_LIMITED, reqId);
+        if (log != null) {
+            if (hex) Hex.appendHex(log.append("Request (hex):\n"), frame).append('\n');
+            log.append("Rate limited: RequestID=").append(Short.toUnsignedInt(reqId)).append(" | Error=")
+                    .append(Calculator.ERR_RATE_LIMITED);
+            Log.debug(log.toString());
+        }
+        Metrics.rateLimited();
+        Metrics.bytesOut(reply.position() - start);
+        Metrics.request(-1, Calculator.ERR_RATE_LIMITED, System.nanoTime() - t0);
+    }
 
-                String opName = "";
-                if (error == ERR_OK) {
-                    byte[] nameBytes = new byte[nameLen];
-                    System.arraycopy(full, nameStart, nameBytes, 0, nameLen);
-                    // Expect BOM FE FF at start:
-                    if (nameLen >= 2 && (nameBytes[0] == (byte)0xFE) && (nameBytes[1] == (byte)0xFF)) {
-                        byte[] be = new byte[nameLen - 2];
-                        System.arraycopy(nameBytes, 2, be, 0, nameLen - 2);
-                        opName = new String(be, StandardCharsets.UTF_16BE);
-                    } else {
-                        // If no BOM, still try to decode as UTF-16BE (not expected by spec)
-                        opName = new String(nameBytes, StandardCharsets.UTF_16BE);
-                    }
-                }
+    // The RequestID of any frame, scalar or vector, whenever its header arrived in full; else 0
+    static short requestId(ByteBuffer frame, RequestView req) {
+        if (VectorFrame.isVector(frame)) {
+            return frame.remaining() >= VectorFrame.HEADER_LEN ? frame.getShort(frame.position() + 2) : 0;
+        }
+        return req.wrap(frame) || frame.remaining() >= RequestView.HEADER_LEN ? req.requestId() : 0;
+    }
 
-                // ii) display request in a user-friendly way
-                System.out.printf("RequestID=%d | OpCode=%d | OpName=\"%s\" | Operands: %d ? %d%n",
-                        reqId, opCode, opName, op1, op2);
+    // Vector request: every item is evaluated with TCP rules in one pass and answered in one frame.
+    // A malformed vector frame gets the scalar 8-byte error 127 reply, like any malformed request.
+    private static void serveVector(ByteBuffer frame, ByteBuffer reply, VectorFrame vec, StringBuilder log,
+                                    boolean hex, long t0, boolean traced, SocketAddress remote) {
+        int opCode = VectorFrame.OPCODE & 0xFF;
+        int length = frame.remaining();
+        int start = reply.position();
+        int error = Calculator.ERR_OK;
+        RequestEvents.Decode decode = new RequestEvents.Decode();
+        decode.begin();
+        boolean valid = vec.decodeRequest(frame);
+        int reqId = Short.toUnsignedInt(vec.requestId());
+        if (traced) RequestEvents.commit(decode, opCode, reqId, length, remote);
+        if (valid) {
+            RequestEvents.Compute compute = new RequestEvents.Compute();
+            compute.begin();
+            vec.evaluate(Calculator.TCP_RULES);
+            if (traced) RequestEvents.commit(compute, opCode, reqId, length, remote);
+        }
+        RequestEvents.Encode encode = new RequestEvents.Encode();
+        encode.begin();
+        if (valid) {
+            vec.encodeReply(reply);
+        } else {
+            error = Calculator.ERR_INVALID;
+            Response.encode(reply, 0, (byte) error, vec.requestId());
+        }
+        if (traced) RequestEvents.commit(encode, opCode, reqId, reply.position() - start, remote);
+        if (!valid) {
+            Metrics.parseFailure();
+            Log.error("Parse/compute error: " + vec.error());
+        }
 
-                // Compute result if length OK
-                if (error == ERR_OK) {
-                    switch (opCode) {
-                        case 0: // -
-                            result = op1 - op2;
-                            break;
-                        case 1: // +
-                            result = op1 + op2;
-                            break;
-                        case 2: // &
-                            result = op1 & op2;
-                            break;
-                        case 3: // |
-                            result = op1 | op2;
-                            break;
-                        case 4: // *
-                            result = op1 * op2;
-                            break;
-                        case 5: // /
-                            if (op2 == 0) {
-                                error = ERR_BADLEN; // use 127 for invalid
-                                result = 0;
-                            } else {
-                                result = op1 / op2;
-                            }
-                            break;
-                        default:
-                            error = ERR_BADLEN;
-                            result = 0;
-                    }
+        if (log != null) {
+            RequestEvents.Logging logging = new RequestEvents.Logging();
+            logging.begin();
+            if (hex) Hex.appendHex(log.append("Request (hex):\n"), frame).append('\n');
+            if (error == Calculator.ERR_OK) {
+                log.append("RequestID=").append(reqId).append(" | Vector of ").append(vec.count()).append(" items\n");
+                for (int i = 0; i < vec.count(); i++) {
+                    log.append("  [").append(i).append("] OpCode=").append(vec.opCode(i)).append(" | Operands: ")
+                            .append(vec.operand1(i)).append(" ? ").append(vec.operand2(i)).append(" => ")
+                            .append(vec.result(i)).append(" | Error=").append(vec.itemError(i)).append('\n');
                 }
-
-            } catch (Exception ex) {
-                error = ERR_BADLEN;
-                result = 0;
-                System.err.println("Parse/compute error: " + ex.getMessage());
             }
-
-            // Build response: TML(1)=8, Result(4), Error(1), ReqID(2)
-            ByteArrayOutputStream resp = new ByteArrayOutputStream();
-            resp.write(8);
-            ByteUtils.putIntBE(resp, result);
-            resp.write(error & 0xFF);
-            ByteUtils.putShortBE(resp, reqId & 0xFFFF);
-            byte[] respBytes = resp.toByteArray();
-
-            // Send back & also display hex
-            out.write(respBytes);
-            out.flush();
-
-            System.out.println("Response (hex):");
-            ByteUtils.hexdump(respBytes);
-            System.out.printf("Responded: RequestID=%d | Result=%d | Error=%d%n", reqId, result, error);
+            if (hex) {
+                ByteBuffer written = reply.duplicate().limit(reply.position()).position(start);
+                Hex.appendHex(log.append("Response (hex):\n"), written).append('\n');
+            }
+            log.append("Responded: RequestID=").append(reqId).append(" | Error=").append(error);
+            Log.debug(log.toString());
+            if (traced) RequestEvents.commit(logging, opCode, reqId, log.length(), remote);
         }
+        Metrics.bytesOut(reply.position() - start);
+        Metrics.request(opCode, error, System.nanoTime() - t0);
     }
 }
@@ -0,0 +1,158 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Thread-per-connection ServerTCP mode. Each accepted Socket runs the unchanged blocking
+// ServerTCP.handleClient on its own thread: a virtual thread when the runtime has them
+// (Java 21+), otherwise a thread from a fixed platform pool. A semaphore caps live connections;
+// once the cap is reached the accept loop waits for a slot instead of queueing sockets nobody serves.
+public class ThreadedServerTCP implements ServerLifecycle {
+    // Socket read timeouts, so a connection blocked on an idle client notices a stop: while
+    // serving, and once stopping (only to finish a partially received request)
+    private static final int IDLE_POLL_MILLIS = 500;
+    private static final int STOP_POLL_MILLIS = 50;
+
+    private final int port;
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final Set<Socket> live = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket server;
+    private volatile boolean stopping;
+
+    private ThreadedServerTCP(int port, ExecutorService executor, int maxConnections) {
+        if (maxConnections < 1) throw new IllegalArgumentException("connection cap must be >= 1");
+        this.port = port;
+        this.executor = executor;
+        this.slots = new Semaphore(maxConnections);
+    }
+
+    // One virtual thread per connection. Falls back to an unbounded platform pool (still capped
+    // by maxConnections) when the running JDK predates virtual threads.
+    public static ThreadedServerTCP virtualThreads(int port, int maxConnections) {
+        ExecutorService ex = newVirtualThreadPerTaskExecutor();
+        if (ex == null) {
+            Log.error("Virtual threads unavailable on this JDK; using platform threads");
+            ex = Executors.newCachedThreadPool();
+        }
+        return new ThreadedServerTCP(port, ex, maxConnections);
+    }
+
+    // Fixed pool of platform threads, one per connection; used as the baseline for comparison.
+    public static ThreadedServerTCP platformPool(int port, int threads) {
+        return new ThreadedServerTCP(port, Executors.newFixedThreadPool(threads), threads);
+    }
+
+    // Looked up reflectively so the class still compiles and runs on pre-21 JDKs.
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        ServerSocket ss = new ServerSocket();
+        try {
+            if (ServerLifecycle.reusePort()) ss.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            ss.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            ss.close();
+            throw e;
+        }
+        server = ss;
+        Log.info("Server listening on port " + port + " (" + slots.availablePermits()
+                + " connection slots) ...");
+        new Thread(this::acceptLoop, "tcp-accept").start();
+    }
+
+    private void acceptLoop() {
+        ServerSocket ss = server;
+        while (!stopping) {
+            slots.acquireUninterruptibly();
+            Socket sock;
+            try {
+                sock = ss.accept();
+            } catch (IOException e) {
+                slots.release();
+                if (!stopping) Log.error("Accept failed: " + e.getMessage());
+                break; // server socket closed by stopAccepting()
+            }
+            live.add(sock); // accepted as stopAccepting() ran: handleClient serves what it sent, then ends
+            try {
+                executor.execute(() -> serveConnection(sock));
+            } catch (RejectedExecutionException e) { // accepted just as the drain began
+                live.remove(sock);
+                slots.release();
+                closeQuietly(sock);
+            }
+        }
+    }
+
+    private void serveConnection(Socket sock) {
+        Metrics.connectionOpened();
+        try (Socket s = sock) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(stopping ? STOP_POLL_MILLIS : IDLE_POLL_MILLIS);
+            Log.info("Accepted connection from " + s.getRemoteSocketAddress());
+            ServerTCP.handleClient(s, () -> stopping);
+        } catch (IOException e) {
+            Log.error("Client handling error: " + e.getMessage());
+        } finally {
+            Metrics.connectionClosed();
+            live.remove(sock);
+            slots.release();
+        }
+    }
+
+    // Stop accepting, and ask every connection to finish: handleClient sees stopping and ends once
+    // it has answered every request the client had sent, including any still unread on the socket.
+    // A read already blocked keeps its IDLE_POLL_MILLIS timeout; later ones wait STOP_POLL_MILLIS.
+    @Override
+    public void stopAccepting() {
+        stopping = true;
+        ServerSocket ss = server;
+        if (ss != null) closeQuietly(ss);
+        for (Socket s : live) {
+            try {
+                s.setSoTimeout(STOP_POLL_MILLIS);
+            } catch (IOException ignore) { /* peer already gone */ }
+        }
+    }
+
+    @Override
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Connections still busy after the drain are closed hard.
+    @Override
+    public void close() {
+        stopping = true;
+        ServerSocket ss = server;
+        if (ss != null) closeQuietly(ss);
+        if (!live.isEmpty()) Log.error("Closing " + live.size() + " connections still open");
+        for (Socket s : live) closeQuietly(s);
+        executor.shutdownNow();
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignore) { /* closing anyway */ }
+    }
+}
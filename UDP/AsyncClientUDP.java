@@ -0,0 +1,177 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Embeddable non-blocking UDP calculator client: computeAsync() sends one datagram and returns a
+// CompletableFuture<Response>, so no caller thread waits on the socket.
+//
+//   - One connected, non-blocking DatagramChannel. Any number of threads send on it directly;
+//     one daemon thread receives every reply and completes the future filed under its RequestID
+//     (so non-async dependent stages run on that thread and should not block it).
+//   - Pending table: 65536 slots indexed by RequestID, with each request's deadline beside it.
+//     The receive loop wakes at least every TICK_MILLIS and fails requests past their deadline
+//     with TimeoutException, freeing their IDs.
+//   - Requests are encoded into a per-thread direct buffer; the future and the reply's Response
+//     are the only objects created per call.
+//   - No retransmission: a lost datagram is a timeout. ReliableClientUDP is the blocking client
+//     that retries.
+//
+// RequestIDs are 16 bits: at most 65536 requests can be outstanding (computeAsync fails fast
+// beyond that), and a reply arriving after its request timed out and its ID was reused would be
+// taken for the newer request. Timeouts far shorter than 65536 requests' worth of traffic avoid
+// that.
+public class AsyncClientUDP implements Closeable {
+    static final long TICK_MILLIS = 10;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final boolean compact;
+    private final long timeoutNanos;
+    private final AtomicReferenceArray<CompletableFuture<Response>> pending = new AtomicReferenceArray<>(1 << 16);
+    private final AtomicLongArray deadlines = new AtomicLongArray(1 << 16);
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final ThreadLocal<ByteBuffer> encodeBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(256));
+    private final Thread receiver;
+
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong strays = new AtomicLong();
+
+    public AsyncClientUDP(InetAddress addr, int port, long timeoutMillis, boolean compact) throws IOException {
+        if (timeoutMillis <= 0) throw new IllegalArgumentException("timeoutMillis must be > 0");
+        this.compact = compact;
+        this.timeoutNanos = timeoutMillis * 1_000_000L;
+        channel = DatagramChannel.open();
+        channel.connect(new InetSocketAddress(addr, port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        receiver = new Thread(this::receiveLoop, "udp-async-rx");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Sends one request. The future completes with the reply, or exceptionally with an
+    // IOException (send failed, or 65536 requests outstanding) or a TimeoutException.
+    public CompletableFuture<Response> computeAsync(byte opCode, int operand1, int operand2) {
+        CompletableFuture<Response> f = new CompletableFuture<>();
+        int id = -1;
+        for (int k = 0; k < 1 << 16; k++) {
+            int candidate = nextId.getAndIncrement() & 0xFFFF;
+            if (pending.get(candidate) == null) {
+                deadlines.set(candidate, System.nanoTime() + timeoutNanos); // before the future is visible
+                if (pending.compareAndSet(candidate, null, f)) {
+                    id = candidate;
+                    break;
+                }
+            }
+        }
+        if (id < 0) {
+            f.completeExceptionally(new IOException("65536 requests outstanding"));
+            return f;
+        }
+
+        ByteBuffer buf = encodeBuf.get();
+        buf.clear();
+        if (compact) {
+            CompactRequest.encode(buf, opCode, operand1, operand2, (short) id);
+        } else {
+            Request.encode(buf, opCode, operand1, operand2, (short) id);
+        }
+        buf.flip();
+        try {
+            if (channel.write(buf) == 0) throw new IOException("Socket send buffer full");
+        } catch (IOException e) {
+            if (pending.compareAndSet(id, f, null)) f.completeExceptionally(e);
+        }
+        return f;
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(ServerUDP.MAX_DATAGRAM);
+        long nextSweep = System.nanoTime() + TICK_MILLIS * 1_000_000L;
+        while (channel.isOpen()) {
+            try {
+                selector.select(TICK_MILLIS);
+                selector.selectedKeys().clear();
+                // Drain every datagram that is ready before going back to the selector
+                while (true) {
+                    buf.clear();
+                    try {
+                        if (channel.read(buf) <= 0) break;
+                    } catch (PortUnreachableException e) {
+                        continue; // ICMP for an earlier send: that request will time out
+                    }
+                    buf.flip();
+                    complete(buf);
+                }
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    expire(now);
+                    nextSweep = now + TICK_MILLIS * 1_000_000L;
+                }
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (channel.isOpen()) System.err.println("Receive failed: " + e.getMessage());
+            }
+        }
+        // Closed: nothing more will be answered
+        for (int i = 0; i < pending.length(); i++) {
+            CompletableFuture<Response> f = pending.getAndSet(i, null);
+            if (f != null) f.completeExceptionally(new IOException("Client closed"));
+        }
+    }
+
+    private void complete(ByteBuffer datagram) {
+        Response r;
+        try {
+            r = Response.parse(datagram);
+        } catch (IllegalArgumentException e) {
+            strays.incrementAndGet();
+            return;
+        }
+        CompletableFuture<Response> f = pending.getAndSet(Short.toUnsignedInt(r.requestId), null);
+        if (f == null) {
+            strays.incrementAndGet(); // duplicate, or its request already timed out
+            return;
+        }
+        f.complete(r);
+    }
+
+    private void expire(long now) {
+        for (int i = 0; i < pending.length(); i++) {
+            CompletableFuture<Response> f = pending.get(i);
+            if (f != null && now - deadlines.get(i) >= 0 && pending.compareAndSet(i, f, null)) {
+                timeouts.incrementAndGet();
+                f.completeExceptionally(new TimeoutException("No reply to RequestID " + i));
+            }
+        }
+    }
+
+    public long timeouts() { return timeouts.get(); }
+    public long strays()   { return strays.get(); }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            receiver.join(1_000); // wakes within a tick, fails what is still pending
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+    }
+}
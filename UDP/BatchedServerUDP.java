@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+// Batched ServerUDP mode: one thread, one non-blocking DatagramChannel.
+//
+// Each wake-up drains every datagram already queued on the socket (up to `batch`) into a ring of
+// preallocated direct buffers, serves them back to back, then sends the replies as one burst.
+// The JDK has no recvmmsg/sendmmsg, so each datagram still costs one receive and one send
+// syscall; what the batch removes is the blocking receive → wake → send → block cycle per packet,
+// and it keeps the decode/compute loop hot while a burst is being served.
+//
+// If the socket send buffer fills mid-burst, the remaining replies wait for OP_WRITE instead of
+// being dropped, and no new datagrams are read until they are out.
+//
+// On stopAccepting() the loop serves whatever is still queued on the socket, then closes it.
+public class BatchedServerUDP implements ServerLifecycle {
+    static final int DEFAULT_BATCH = 64;
+
+    private final int port;
+    private final int batch;
+    private DatagramChannel channel;
+    private Selector selector;
+    private Thread loop;
+    private volatile boolean stopping;
+
+    public BatchedServerUDP(int port, int batch) {
+        if (batch < 1) throw new IllegalArgumentException("batch must be >= 1");
+        this.port = port;
+        this.batch = batch;
+    }
+
+    @Override
+    public void start() throws IOException {
+        channel = ServerUDP.bind(port, ServerLifecycle.reusePort());
+        selector = Selector.open();
+        loop = new Thread(this::serve, "udp-batch");
+        loop.start();
+        Log.info("Server listening on port " + port + " (batched I/O, up to " + batch + " datagrams per burst)");
+    }
+
+    private void serve() {
+        try (DatagramChannel ch = channel; Selector sel = selector) {
+            run(ch, sel);
+        } catch (IOException e) {
+            if (!stopping) Log.error("Server stopped: " + e.getMessage());
+        }
+    }
+
+    private void run(DatagramChannel channel, Selector selector) throws IOException {
+        ByteBuffer[] in = new ByteBuffer[batch];
+        ByteBuffer[] out = new ByteBuffer[batch];
+        InetSocketAddress[] from = new InetSocketAddress[batch];
+        for (int i = 0; i < batch; i++) {
+            in[i] = ByteBuffer.allocateDirect(ServerUDP.MAX_DATAGRAM);
+            out[i] = ByteBuffer.allocateDirect(Math.max(Response.LENGTH, VectorFrame.MAX_REPLY_LEN));
+        }
+        ServerUDP.Scratch scratch = new ServerUDP.Scratch();
+
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+
+        int count = 0; // replies in out[0, count)
+        int sent = 0;  // replies in out[0, sent) already on the wire
+        while (true) {
+            selector.select();
+            selector.selectedKeys().clear();
+
+            // Finish a burst the send buffer cut short before reading anything new
+            if (sent < count) {
+                sent = sendBurst(channel, out, from, sent, count);
+                if (sent < count) continue;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+
+            // Keep draining while bursts come back full: the socket may have more queued
+            do {
+                count = 0;
+                while (count < batch) {
+                    ByteBuffer buf = in[count];
+                    buf.clear();
+                    InetSocketAddress sender = ServerUDP.receive(channel, buf);
+                    if (sender == null) break; // socket drained
+                    buf.flip();
+                    from[count++] = sender;
+                }
+                // handle() replies through the one scratch buffer, so each reply is copied
+                // to its own slot before the next datagram is served.
+                for (int i = 0; i < count; i++) {
+                    out[i].clear();
+                    out[i].put(ServerUDP.handle(in[i], from[i], scratch)).flip();
+                }
+                sent = sendBurst(channel, out, from, 0, count);
+                if (sent < count) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    break;
+                }
+            } while (count == batch);
+            // Stopping: leave once the socket is empty and every reply is out
+            if (stopping && sent == count) return;
+        }
+    }
+
+    @Override
+    public void stopAccepting() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        loop.join(Math.max(1, timeoutMillis));
+        return !loop.isAlive();
+    }
+
+    @Override
+    public void close() {
+        stopping = true;
+        loop.interrupt(); // closes the channel if the loop is still in it
+    }
+
+    // Sends out[from, to); returns the index of the first reply not sent (to when all went out).
+    private static int sendBurst(DatagramChannel channel, ByteBuffer[] out, InetSocketAddress[] dest,
+                                 int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            if (ServerUDP.send(channel, out[i], dest[i]) == 0) return i; // send buffer full
+        }
+        return to;
+    }
+}
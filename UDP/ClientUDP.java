@@ -1,18 +1,11 @@
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.util.Locale;
 import java.util.Scanner;
 
 public class ClientUDP {
-    private static String toHex(byte[] arr, int len) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < len; i++) {
-            sb.append(String.format("%02X", arr[i]));
-            if (i < len - 1) sb.append(' ');
-        }
-        return sb.toString();
-    }
+    // Interactive mode: resend an unanswered request up to this many times before giving up
+    private static final int RETRIES = 5;
 
     private static String opTable() {
         return
@@ -26,8 +19,9 @@ public class ClientUDP {
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 3 || !args[0].equalsIgnoreCase("ClientUDP")) {
-            System.out.println("Usage: java ClientUDP ClientUDP <serverName> <port>");
+        boolean load = args.length >= 4 && args[3].equals("load");
+        if ((args.length != 3 && !load) || !args[0].equalsIgnoreCase("ClientUDP")) {
+            System.out.println("Usage: java ClientUDP ClientUDP <serverName> <port> [" + LoadGenerator.usage() + "]");
             return;
         }
         String host = args[1];
@@ -35,7 +29,18 @@ public class ClientUDP {
 
         InetAddress addr = InetAddress.getByName(host);
 
-        try (DatagramSocket socket = new DatagramSocket();
+        if (load) {
+            // Non-interactive: --conns UDP sockets, each doing request/reply with a 1 s loss timeout,
+            // or with retransmission on an adaptive timeout when --retries is given
+            LoadGenerator gen = LoadGenerator.fromArgs(args, 4);
+            gen.run(() -> gen.retries() > 0
+                    ? new ReliableLoadEndpointUDP(addr, port, gen.retries(), gen.compactFormat())
+                    : new LoadEndpointUDP(addr, port, gen.compactFormat()));
+            return;
+        }
+
+        // Lost datagrams are retransmitted (RTO from measured RTT) instead of hanging the prompt
+        try (ReliableClientUDP client = new ReliableClientUDP(addr, port, 1, RETRIES, false);
              Scanner sc = new Scanner(System.in)) {
 
             short reqId = 1;
@@ -71,33 +76,23 @@ public class ClientUDP {
 
                 // (iii) hex dump of request
                 System.out.println("TX " + out.length + " bytes:");
-                System.out.println(toHex(out, out.length));
-
-                DatagramPacket pkt = new DatagramPacket(out, out.length, addr, port);
+                System.out.println(Hex.toHex(out, out.length));
 
                 long t0 = System.nanoTime();
-                socket.send(pkt);
-
-                byte[] buf = new byte[1024];
-                DatagramPacket reply = new DatagramPacket(buf, buf.length);
-                socket.receive(reply);
-                long t1 = System.nanoTime();
-
-                int rlen = reply.getLength();
-                byte[] rdat = new byte[rlen];
-                System.arraycopy(reply.getData(), reply.getOffset(), rdat, 0, rlen);
-
-                // (v) hex dump response
-                System.out.println("RX " + rlen + " bytes:");
-                System.out.println(toHex(rdat, rlen));
-
                 Response resp;
                 try {
-                    resp = Response.parse(rdat, rlen);
-                } catch (IllegalArgumentException ex) {
-                    System.out.println("Failed to parse response: " + ex.getMessage());
+                    resp = client.call((byte) opCode, op1, op2, reqId);
+                } catch (SocketTimeoutException e) {
+                    System.out.println(e.getMessage() + "\n");
+                    reqId = (short)((reqId + 1) & 0xFFFF);
                     continue;
                 }
+                long t1 = System.nanoTime();
+
+                // (v) hex dump response
+                byte[] rdat = resp.toByteArray();
+                System.out.println("RX " + rdat.length + " bytes:");
+                System.out.println(Hex.toHex(rdat, rdat.length));
 
                 // (vi) human-readable
                 String errText = (resp.errorCode == 0) ? "Ok" : ("Error " + (resp.errorCode & 0xFF));
@@ -123,6 +118,10 @@ public class ClientUDP {
                 System.out.printf(Locale.US, "RTT summary over %d requests: min=%.3f ms  avg=%.3f ms  max=%.3f ms%n",
                         count, minMs, avgMs, maxMs);
             }
+            if (client.retransmits() > 0) {
+                System.out.printf(Locale.US, "Retransmissions: %d (current RTO %.3f ms)%n",
+                        client.retransmits(), client.rtoNanos() / 1_000_000.0);
+            }
             System.out.println("Bye.");
         }
     }
@@ -0,0 +1,66 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+// LoadGenerator endpoint over one UDP socket. A reply that does not arrive within the timeout
+// counts as lost; late replies to earlier (timed-out) requests are recognised by RequestID and
+// skipped. Packets and buffers are reused, so nothing is allocated per call. In compact mode
+// requests go out as 13-byte CompactRequest datagrams (marked by their leading 0x00 byte).
+public class LoadEndpointUDP implements LoadGenerator.Endpoint {
+    private static final int TIMEOUT_MS = 1000;
+
+    private final DatagramSocket socket;
+    private final byte[] txBuf = new byte[256];
+    private final ByteBuffer tx = ByteBuffer.wrap(txBuf);
+    private final DatagramPacket txPacket;
+    private final byte[] rxBuf = new byte[ServerUDP.MAX_DATAGRAM];
+    private final ByteBuffer rx = ByteBuffer.wrap(rxBuf);
+    private final DatagramPacket rxPacket = new DatagramPacket(rxBuf, rxBuf.length);
+    private final boolean compact;
+
+    public LoadEndpointUDP(InetAddress addr, int port, boolean compact) throws IOException {
+        this.compact = compact;
+        socket = new DatagramSocket();
+        socket.connect(addr, port);
+        socket.setSoTimeout(TIMEOUT_MS);
+        txPacket = new DatagramPacket(txBuf, 0, addr, port);
+    }
+
+    @Override
+    public int call(byte opCode, int operand1, int operand2, short requestId) throws IOException {
+        tx.clear();
+        if (compact) {
+            CompactRequest.encode(tx, opCode, operand1, operand2, requestId);
+        } else {
+            Request.encode(tx, opCode, operand1, operand2, requestId);
+        }
+        txPacket.setLength(tx.position());
+        socket.send(txPacket);
+
+        long deadline = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+        socket.setSoTimeout(TIMEOUT_MS); // a previous call may have left it shortened
+        while (true) {
+            rxPacket.setLength(rxBuf.length);
+            try {
+                socket.receive(rxPacket);
+            } catch (SocketTimeoutException e) {
+                return -1;
+            }
+            if (rxPacket.getLength() == Response.LENGTH && rx.getShort(6) == requestId) {
+                return rxBuf[5] & 0xFF;
+            }
+            // stale reply to a request we already gave up on
+            int left = (int) ((deadline - System.nanoTime()) / 1_000_000L);
+            if (left <= 0) return -1;
+            socket.setSoTimeout(left);
+        }
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
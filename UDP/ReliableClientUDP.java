@@ -0,0 +1,219 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Reliability layer for the UDP calculator protocol, built on the RequestID field.
+//
+//   - Window: up to `window` requests in flight at once (call() may be used from many threads);
+//     each is filed under its RequestID and matched to its reply by that ID alone, so replies may
+//     arrive in any order.
+//   - Timeouts: the retransmission timeout follows RFC 6298: smoothed RTT + 4 x RTT variance,
+//     sampled only from requests answered on their first transmission (Karn), doubled on every
+//     timeout and clamped to [MIN_RTO, MAX_RTO].
+//   - Retries: a request is resent with the same RequestID up to `maxRetries` times, then call()
+//     throws SocketTimeoutException. The server's answer is idempotent, so a late reply to an
+//     earlier transmission completes the request just as well.
+//   - Duplicates: a reply whose RequestID is not in flight (already answered, or given up on) is
+//     counted and dropped.
+//
+// One daemon thread receives replies; callers wait on their own request and retransmit it
+// themselves when its timeout expires, so there is no timer thread.
+//
+// RequestIDs are 16 bits: a reply delayed by more than 65536 later requests would be mistaken
+// for the newest request with its ID. The window keeps far fewer than that in flight.
+public class ReliableClientUDP implements Closeable {
+    static final long INITIAL_RTO_NANOS = 200_000_000L; // before the first RTT sample
+    static final long MIN_RTO_NANOS = 1_000_000L;       // 1 ms: the RFC's 1 s floor is for WANs
+    static final long MAX_RTO_NANOS = 2_000_000_000L;
+
+    private final DatagramSocket socket;
+    private final InetAddress addr;
+    private final int port;
+    private final boolean compact;
+    private final int maxRetries;
+    private final Semaphore window;
+    private final AtomicReferenceArray<Pending> inFlight = new AtomicReferenceArray<>(1 << 16);
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Thread receiver;
+
+    // RFC 6298 estimator state, guarded by this
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = INITIAL_RTO_NANOS;
+
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private static final class Pending {
+        final Thread waiter;
+        short requestId;
+        byte[] datagram;
+        volatile Response response;
+
+        Pending(Thread waiter) {
+            this.waiter = waiter;
+        }
+    }
+
+    public ReliableClientUDP(InetAddress addr, int port, int window, int maxRetries, boolean compact)
+            throws SocketException {
+        if (window < 1 || window > 1 << 15) throw new IllegalArgumentException("window must be 1..32768");
+        if (maxRetries < 0) throw new IllegalArgumentException("maxRetries must be >= 0");
+        this.addr = addr;
+        this.port = port;
+        this.compact = compact;
+        this.maxRetries = maxRetries;
+        this.window = new Semaphore(window);
+        socket = new DatagramSocket();
+        socket.connect(addr, port);
+        receiver = new Thread(this::receiveLoop, "udp-reliable-rx");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    // Sends one request and blocks until its reply arrives, retransmitting on timeout; the
+    // RequestID is assigned here. Throws SocketTimeoutException once maxRetries resends went
+    // unanswered.
+    public Response call(byte opCode, int operand1, int operand2) throws IOException, InterruptedException {
+        return call(opCode, operand1, operand2, (short) 0, false);
+    }
+
+    // As above with a caller-chosen RequestID, which must not be in flight already.
+    public Response call(byte opCode, int operand1, int operand2, short requestId)
+            throws IOException, InterruptedException {
+        return call(opCode, operand1, operand2, requestId, true);
+    }
+
+    private Response call(byte opCode, int operand1, int operand2, short requestId, boolean fixedId)
+            throws IOException, InterruptedException {
+        window.acquire();
+        try {
+            Pending p = new Pending(Thread.currentThread());
+            short reqId = fixedId ? requestId : (short) nextId.getAndIncrement();
+            // File the request under its RequestID; an automatic ID skips any still in flight
+            while (!inFlight.compareAndSet(Short.toUnsignedInt(reqId), null, p)) {
+                if (fixedId) throw new IllegalStateException("RequestID " + Short.toUnsignedInt(reqId) + " is in flight");
+                reqId = (short) nextId.getAndIncrement();
+            }
+            ByteBuffer buf = ByteBuffer.allocate(256); // a legacy request is at most 255 bytes
+            if (compact) {
+                CompactRequest.encode(buf, opCode, operand1, operand2, reqId);
+            } else {
+                Request.encode(buf, opCode, operand1, operand2, reqId);
+            }
+            p.requestId = reqId;
+            p.datagram = Arrays.copyOf(buf.array(), buf.position());
+            try {
+                return await(p);
+            } finally {
+                inFlight.compareAndSet(Short.toUnsignedInt(reqId), p, null);
+            }
+        } finally {
+            window.release();
+        }
+    }
+
+    private Response await(Pending p) throws IOException, InterruptedException {
+        long timeout = currentRto();
+        for (int attempt = 0; ; attempt++) {
+            long sentAt = System.nanoTime();
+            socket.send(new DatagramPacket(p.datagram, p.datagram.length, addr, port));
+            long deadline = sentAt + timeout;
+            Response r;
+            long left;
+            while ((r = p.response) == null && (left = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, left);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+            if (r != null) {
+                if (attempt == 0) sampleRtt(System.nanoTime() - sentAt); // Karn: first tries only
+                return r;
+            }
+            if (attempt == maxRetries) {
+                failures.incrementAndGet();
+                throw new SocketTimeoutException("No reply to RequestID " + Short.toUnsignedInt(p.requestId)
+                        + " after " + (maxRetries + 1) + " transmissions");
+            }
+            retransmits.incrementAndGet();
+            timeout = backOff(timeout);
+        }
+    }
+
+    private void receiveLoop() {
+        byte[] buf = new byte[ServerUDP.MAX_DATAGRAM];
+        DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+        while (!socket.isClosed()) {
+            try {
+                pkt.setLength(buf.length);
+                socket.receive(pkt);
+                Response r = Response.parse(buf, pkt.getLength());
+                Pending p = inFlight.get(Short.toUnsignedInt(r.requestId));
+                if (p == null || p.response != null) {
+                    duplicates.incrementAndGet(); // answered already, or given up on
+                    continue;
+                }
+                p.response = r;
+                LockSupport.unpark(p.waiter);
+            } catch (IllegalArgumentException e) {
+                duplicates.incrementAndGet(); // not a reply we can match: drop it
+            } catch (PortUnreachableException e) {
+                // ICMP for an earlier send (no server yet): the request's own timeout retries it
+            } catch (IOException e) {
+                if (!socket.isClosed()) System.err.println("Receive failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized long currentRto() {
+        return rto;
+    }
+
+    // RFC 6298 section 2: alpha = 1/8, beta = 1/4, RTO = SRTT + max(G, K * RTTVAR) with K = 4
+    private synchronized void sampleRtt(long r) {
+        if (srtt < 0) {
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar += (Math.abs(srtt - r) - rttvar) / 4;
+            srtt += (r - srtt) / 8;
+        }
+        rto = clamp(srtt + Math.max(MIN_RTO_NANOS, 4 * rttvar));
+    }
+
+    // RFC 6298 section 5.5: double the timeout after each expiry. Doubling the request's own
+    // timeout (and raising the shared RTO to at least that) keeps a burst of simultaneous
+    // timeouts in a wide window from doubling the shared value once per request.
+    private synchronized long backOff(long expired) {
+        long next = clamp(expired * 2);
+        rto = Math.max(rto, next);
+        return next;
+    }
+
+    private static long clamp(long rto) {
+        return Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, rto));
+    }
+
+    public synchronized long rtoNanos()  { return rto; }
+    public synchronized long srttNanos() { return Math.max(srtt, 0); }
+    public long retransmits()            { return retransmits.get(); }
+    public long duplicates()             { return duplicates.get(); }
+    public long failures()               { return failures.get(); }
+
+    @Override
+    public void close() {
+        socket.close();
+        receiver.interrupt();
+    }
+}
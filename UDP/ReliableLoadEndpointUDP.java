@@ -0,0 +1,36 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+// LoadGenerator endpoint over a ReliableClientUDP (window 1, as the generator calls synchronously):
+// lost datagrams are retransmitted on the adaptive timeout, and a request only counts as lost
+// once its retries are used up.
+public class ReliableLoadEndpointUDP implements LoadGenerator.Endpoint {
+    private final ReliableClientUDP client;
+
+    public ReliableLoadEndpointUDP(InetAddress addr, int port, int retries, boolean compact) throws IOException {
+        client = new ReliableClientUDP(addr, port, 1, retries, compact);
+    }
+
+    @Override
+    public int call(byte opCode, int operand1, int operand2, short requestId) throws IOException {
+        try {
+            return client.call(opCode, operand1, operand2, requestId).errorCode & 0xFF;
+        } catch (SocketTimeoutException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a reply");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (client.retransmits() > 0 || client.duplicates() > 0) {
+            System.out.printf("Socket: %d retransmissions, %d duplicate replies, RTO %.2f ms%n",
+                    client.retransmits(), client.duplicates(), client.rtoNanos() / 1e6);
+        }
+        client.close();
+    }
+}
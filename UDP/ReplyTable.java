@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Recently sent UDP replies, so a retransmitted request is answered with the same 8 bytes without
+// computing or logging it again.
+//
+// Keyed by (source address, source port, RequestID) plus the request's opcode and operands: a
+// client that reuses a RequestID for a different request (IDs wrap at 65536) never gets the old
+// answer back. Replies are deterministic in the request, so an entry can only ever be right.
+//
+// Fixed-size, direct-mapped, lock-free table: memory is capacity x 40 bytes however many clients
+// there are; a newer request simply overwrites whichever entry shares its slot, and entries
+// older than the TTL are ignored. Each slot is a seqlock over five longs in one AtomicLongArray:
+//   [seq, key, operands, opCode << 56 | stored-at millis, packed reply]
+// A writer makes seq odd with a CAS (skipping the store if another writer holds the slot), writes
+// the fields and makes seq even again; a reader retries nothing: a slot it sees odd, or whose seq
+// moved during the read, is a miss.
+//
+// IPv4 sources are keyed exactly; an IPv6 source contributes its address hash.
+//
+// Configuration: -Dcalc.udp.replies=N slots (rounded up to a power of two, default 65536, 0 = off)
+//                -Dcalc.udp.replies.ttl=MS (default 5000)
+public final class ReplyTable {
+    private static final int SEQ = 0, KEY = 1, OPERANDS = 2, OP_TIME = 3, REPLY = 4, WORDS = 5;
+    private static final long TIME_MASK = (1L << 56) - 1;
+
+    private final AtomicLongArray slots;
+    private final int mask;
+    private final long ttlMillis;
+
+    public ReplyTable(int capacity, long ttlMillis) {
+        int cap = capacity <= 0 ? 0 : Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new AtomicLongArray(cap * WORDS);
+        mask = cap - 1;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static ReplyTable fromProperties() {
+        return new ReplyTable(Integer.getInteger("calc.udp.replies", 1 << 16),
+                Long.getLong("calc.udp.replies.ttl", 5_000L));
+    }
+
+    public boolean enabled() {
+        return mask >= 0;
+    }
+
+    // Source key: the IPv4 address (or an IPv6 address hash), port and RequestID in one long.
+    public static long key(int addressHash, int port, short requestId) {
+        return (long) addressHash << 32 | (long) (port & 0xFFFF) << 16 | (requestId & 0xFFFF);
+    }
+
+    // The packed reply (result in bits 0..31, error in 32..39, as Calculator packs it) stored for
+    // this request, or -1 if there is none younger than the TTL.
+    public long lookup(long key, int opCode, int a, int b, long nowMillis) {
+        if (mask < 0) return -1;
+        int base = index(key);
+        long seq = slots.get(base + SEQ);
+        if ((seq & 1) != 0) return -1; // being written
+        long storedKey = slots.get(base + KEY);
+        long operands = slots.get(base + OPERANDS);
+        long opTime = slots.get(base + OP_TIME);
+        long reply = slots.get(base + REPLY);
+        if (slots.get(base + SEQ) != seq) return -1; // torn read
+        if (storedKey != key || operands != operands(a, b) || (int) (opTime >>> 56) != (opCode & 0xFF)) return -1;
+        if (nowMillis - (opTime & TIME_MASK) > ttlMillis) return -1;
+        return reply;
+    }
+
+    public void store(long key, int opCode, int a, int b, long packedReply, long nowMillis) {
+        if (mask < 0) return;
+        int base = index(key);
+        long seq = slots.get(base + SEQ);
+        if ((seq & 1) != 0 || !slots.compareAndSet(base + SEQ, seq, seq + 1)) return; // slot busy: skip
+        slots.set(base + KEY, key);
+        slots.set(base + OPERANDS, operands(a, b));
+        slots.set(base + OP_TIME, (long) (opCode & 0xFF) << 56 | (nowMillis & TIME_MASK));
+        slots.set(base + REPLY, packedReply);
+        slots.set(base + SEQ, seq + 2);
+    }
+
+    private int index(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return ((int) (h >>> 32) & mask) * WORDS;
+    }
+
+    private static long operands(int a, int b) {
+        return (long) a << 32 | (b & 0xFFFFFFFFL);
+    }
+}
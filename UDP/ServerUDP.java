@@ -1,85 +1,280 @@
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 
 public class ServerUDP {
-    private static String toHex(byte[] arr, int len) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < len; i++) {
-            sb.append(String.format("%02X", arr[i]));
-            if (i < len - 1) sb.append(' ');
-        }
-        return sb.toString();
-    }
+    static final int MAX_DATAGRAM = 1024;
 
-    private static int compute(byte opCode, int a, int b) {
-        switch (opCode) {
-            case 0: return a - b;           // subtraction
-            case 1: return a + b;           // addition
-            case 2: return a & b;           // bitwise AND
-            case 3: return a | b;           // bitwise OR
-            case 4: return a * b;           // multiplication
-            case 5: return a / b;           // integer division (caller beware of /0)
-            default: return 0;
-        }
+    // UDP rules, behind the optional result cache (-Dcalc.cache)
+    private static final ResultCache COMPUTE = ResultCache.fromProperties(Calculator.UDP_RULES);
+
+    // Replies recently sent, so client retransmissions are answered without recomputing (-Dcalc.udp.replies)
+    private static final ReplyTable REPLIES = ReplyTable.fromProperties();
+
+    // Per-source-address admission control (-Dcalc.rate)
+    private static final RateLimiter LIMITER = RateLimiter.fromProperties();
+
+    // Per-thread reusable decode/encode state: with it the decode/compute/encode path creates no
+    // garbage. With per-request logging off (-Dcalc.log=info) nothing at all is allocated per request.
+    static final class Scratch {
+        final RequestView view = new RequestView();
+        final VectorFrame vec = new VectorFrame();
+        final ByteBuffer out = ByteBuffer.allocateDirect(Math.max(Response.LENGTH, VectorFrame.MAX_REPLY_LEN));
+        final StringBuilder log = new StringBuilder(256);
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 2 || !args[0].equalsIgnoreCase("ServerUDP")) {
-            System.out.println("Usage: java ServerUDP ServerUDP <port>");
+        if (args.length < 2 || args.length > 4 || !args[0].equalsIgnoreCase("ServerUDP")) {
+            System.out.println("Usage: java ServerUDP ServerUDP <port> [threads | batch [size] | staged [workers]]");
             return;
         }
         int port = Integer.parseInt(args[1]);
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            System.out.println("Server listening on port " + port);
-            byte[] buf = new byte[1024];
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buf, buf.length);
-                socket.receive(packet);
-
-                byte[] data = new byte[packet.getLength()];
-                System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
-
-                // (i) hex dump
-                System.out.println("RX (" + packet.getAddress() + ":" + packet.getPort() + ") "
-                        + packet.getLength() + " bytes");
-                System.out.println(toHex(data, data.length));
-
-                Response resp;
-                short ridEcho = 0;
-                try {
-                    Request req = Request.parse(data, data.length);
-                    ridEcho = req.requestId;
-
-                    // (ii) human-friendly
-                    String opWord = Request.opNameForCode(req.opCode);
-                    System.out.println("RequestID=" + Short.toUnsignedInt(req.requestId) + " :: "
-                            + req.operand1 + " " + opWord + " " + req.operand2
-                            + "   (name field: \"" + req.opNameString() + "\")");
-
-                    int result;
-                    if (req.opCode == 5 && req.operand2 == 0) {
-                        // Spec only defines 127 for TML mismatch; for /0 we still return 0 with error=0 per spec.
-                        result = 0;
-                    } else {
-                        result = compute(req.opCode, req.operand1, req.operand2);
-                    }
-                    resp = Response.ok(result, req.requestId);
-                } catch (IllegalArgumentException ex) {
-                    // TML mismatch or malformed → error 127; echo whatever requestId we could parse (0 if none)
-                    System.out.println("Parse error: " + ex.getMessage());
-                    resp = Response.lengthError(ridEcho);
-                }
+        Metrics.startEndpointIfConfigured("udp");
+        // Every mode runs until Ctrl-C / SIGTERM, then answers what is queued and closes (ServerLifecycle)
+        ServerLifecycle server;
+        if (args.length >= 3 && args[2].equals("batch")) {
+            server = new BatchedServerUDP(port, args.length == 4 ? Integer.parseInt(args[3])
+                    : BatchedServerUDP.DEFAULT_BATCH);
+        } else if (args.length >= 3 && args[2].equals("staged")) {
+            server = new StagedServerUDP(port, args.length == 4 ? Integer.parseInt(args[3])
+                    : Runtime.getRuntime().availableProcessors());
+        } else {
+            server = new ShardedServerUDP(port, args.length == 3 ? Integer.parseInt(args[2]) : 1);
+        }
+        ServerLifecycle.runUntilShutdown(server);
+    }
 
-                byte[] out = resp.toByteArray();
-                // Debug: hex dump of TX
-                System.out.println("TX " + out.length + " bytes");
-                System.out.println(toHex(out, out.length));
+    // The server port as a non-blocking channel, shareable with other sockets when reusePort is set.
+    static DatagramChannel bind(int port, boolean reusePort) throws IOException {
+        DatagramChannel ch = DatagramChannel.open();
+        try {
+            if (reusePort) ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            ch.bind(new InetSocketAddress(port));
+            ch.configureBlocking(false);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
 
-                DatagramPacket reply = new DatagramPacket(out, out.length,
-                        packet.getAddress(), packet.getPort());
-                socket.send(reply);
+    // Sends one reply on a non-blocking channel registered for OP_READ with key; if the socket
+    // send buffer is full, waits in the key's selector until there is room (and the calc.Send
+    // event includes the wait).
+    static void send(SelectionKey key, ByteBuffer out, InetSocketAddress to) throws IOException {
+        DatagramChannel ch = (DatagramChannel) key.channel();
+        RequestEvents.Send send = new RequestEvents.Send();
+        send.begin();
+        int n = out.remaining();
+        if (ch.send(out, to) == 0) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            while (ch.send(out, to) == 0) {
+                key.selector().select();
+                key.selector().selectedKeys().clear();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        if (RequestEvents.sampleSend()) RequestEvents.commit(send, -1, -1, n, to);
+    }
+
+    // DatagramChannel.send, timed as a calc.Send event. Returns 0 if the send buffer was full.
+    static int send(DatagramChannel ch, ByteBuffer out, InetSocketAddress to) throws IOException {
+        RequestEvents.Send send = new RequestEvents.Send();
+        send.begin();
+        int n = ch.send(out, to);
+        if (RequestEvents.sampleSend()) RequestEvents.commit(send, -1, -1, n, to);
+        return n;
+    }
+
+    // DatagramChannel.receive into in, timed as a calc.Receive event when a datagram was there.
+    // Returns the sender, or null if the socket was empty.
+    static InetSocketAddress receive(DatagramChannel ch, ByteBuffer in) throws IOException {
+        RequestEvents.Receive receive = new RequestEvents.Receive();
+        receive.begin();
+        int start = in.position();
+        InetSocketAddress from = (InetSocketAddress) ch.receive(in);
+        if (from != null && RequestEvents.sampleReceive()) {
+            RequestEvents.commit(receive, -1, -1, in.position() - start, from);
+        }
+        return from;
+    }
+
+    // Log, parse and compute one datagram held in in[position, limit). Returns scratch.out, flipped
+    // and ready to send. Stateless apart from the caller's scratch, so any number of receiver
+    // threads may call it concurrently, each with its own Scratch.
+    static ByteBuffer handle(ByteBuffer in, InetSocketAddress from, Scratch scratch) {
+        long t0 = System.nanoTime();
+        int length = in.remaining();
+        Metrics.bytesIn(length);
+        boolean traced = RequestEvents.sampleRequest(); // JFR stage events for this request
+        boolean vector = VectorFrame.isVector(in);
+        RequestView req = scratch.view;
+        RequestEvents.Decode decode = new RequestEvents.Decode();
+        decode.begin();
+        boolean valid = !vector && req.wrap(in);
+        if (traced && !vector) { // a vector frame is decoded (and its decode timed) in handleVector
+            RequestEvents.commit(decode, valid ? req.opCode() & 0xFF : -1,
+                    valid ? Short.toUnsignedInt(req.requestId()) : 0, length, from);
+        }
+
+        // A source over its rate limit is told so (error 126) rather than silently dropped; the
+        // check comes first so retransmissions count against the budget too
+        if (!LIMITER.tryAcquire(from.getAddress().hashCode())) {
+            short rid = valid ? req.requestId()
+                    : vector && in.remaining() >= VectorFrame.HEADER_LEN ? in.getShort(in.position() + 2) : 0;
+            ByteBuffer out = scratch.out;
+            out.clear();
+            Response.encode(out, 0, Calculator.ERR_RATE_LIMITED, rid);
+            out.flip();
+            Metrics.rateLimited();
+            Metrics.bytesOut(out.remaining());
+            Metrics.request(-1, Calculator.ERR_RATE_LIMITED, System.nanoTime() - t0);
+            return out;
+        }
+
+        // A retransmission of a request answered moments ago gets the stored reply, unlogged
+        long replyKey = 0, now = 0;
+        if (valid && REPLIES.enabled()) {
+            replyKey = ReplyTable.key(from.getAddress().hashCode(), from.getPort(), req.requestId());
+            now = System.currentTimeMillis();
+            long stored = REPLIES.lookup(replyKey, req.opCode(), req.operand1(), req.operand2(), now);
+            if (stored >= 0) {
+                ByteBuffer out = scratch.out;
+                out.clear();
+                Response.encode(out, Calculator.result(stored), Calculator.error(stored), req.requestId());
+                out.flip();
+                Metrics.duplicateReply();
+                Metrics.bytesOut(out.remaining());
+                Metrics.request(req.opCode() & 0xFF, Calculator.error(stored), System.nanoTime() - t0);
+                return out;
+            }
+        }
+
+        // One sampling decision per request; its lines go out as a single record so they stay
+        // together when several threads log at once. The record is built once the reply is
+        // encoded (in is left untouched), so calc.Log times all of the logging.
+        StringBuilder log = Log.sampleRequest() ? scratch.log : null;
+        boolean hex = log != null && Log.enabled(Log.Level.TRACE);
+        if (vector) return handleVector(in, from, scratch, log, hex, t0, traced);
+
+        int result = 0;
+        byte error = 0;
+        short ridEcho = 0;
+        int opCode = -1;
+        if (valid) {
+            ridEcho = req.requestId();
+            opCode = req.opCode() & 0xFF;
+
+            // UDP rules: division by zero and unknown opcodes give result 0 with error 0 (the spec
+            // only defines 127 for TML mismatch)
+            RequestEvents.Compute compute = new RequestEvents.Compute();
+            compute.begin();
+            long packed = COMPUTE.apply(opCode, req.operand1(), req.operand2());
+            result = Calculator.result(packed);
+            error = Calculator.error(packed);
+            if (traced) RequestEvents.commit(compute, opCode, Short.toUnsignedInt(ridEcho), length, from);
+            if (REPLIES.enabled()) REPLIES.store(replyKey, opCode, req.operand1(), req.operand2(), packed, now);
+        } else {
+            // TML mismatch or malformed → error 127; requestId echoed as 0 like Request.parse callers did
+            Log.error("Parse error: " + req.error() + " (from " + from + ")");
+            Metrics.parseFailure();
+            error = (byte) 127;
+        }
+
+        ByteBuffer out = scratch.out;
+        out.clear();
+        RequestEvents.Encode encode = new RequestEvents.Encode();
+        encode.begin();
+        Response.encode(out, result, error, ridEcho);
+        out.flip();
+        if (traced) RequestEvents.commit(encode, opCode, Short.toUnsignedInt(ridEcho), out.remaining(), from);
+        if (log != null) {
+            RequestEvents.Logging logging = new RequestEvents.Logging();
+            logging.begin();
+            appendReceived(log, in, from, hex);
+            if (valid) {
+                // (ii) human-friendly
+                log.append("\nRequestID=").append(Short.toUnsignedInt(ridEcho)).append(" :: ")
+                        .append(req.operand1()).append(' ').append(Request.opNameForCode(req.opCode()))
+                        .append(' ').append(req.operand2()).append("   (name field: \"");
+                req.appendOpName(log).append("\")");
+            }
+            // Debug: hex dump of TX
+            log.append("\nTX ").append(out.remaining()).append(" bytes");
+            if (hex) Hex.appendHex(log.append('\n'), out);
+            Log.debug(log.toString());
+            if (traced) RequestEvents.commit(logging, opCode, Short.toUnsignedInt(ridEcho), log.length(), from);
+        }
+        Metrics.bytesOut(out.remaining());
+        Metrics.request(opCode, error, System.nanoTime() - t0);
+        return out;
+    }
+
+    // (i) The start of a request's log record: sender, size and (trace) hex dump of the datagram
+    private static void appendReceived(StringBuilder log, ByteBuffer in, InetSocketAddress from, boolean hex) {
+        log.setLength(0);
+        log.append("RX (").append(from.getAddress()).append(':').append(from.getPort()).append(") ")
+                .append(in.remaining()).append(" bytes");
+        if (hex) Hex.appendHex(log.append('\n'), in);
+    }
+
+    // Vector request: every item is evaluated with UDP rules in one pass and answered in one
+    // datagram. A malformed vector frame gets the scalar error 127 reply with RequestID 0.
+    private static ByteBuffer handleVector(ByteBuffer in, InetSocketAddress from, Scratch scratch,
+                                           StringBuilder log, boolean hex, long t0, boolean traced) {
+        int opCode = VectorFrame.OPCODE & 0xFF;
+        int length = in.remaining();
+        VectorFrame vec = scratch.vec;
+        ByteBuffer out = scratch.out;
+        out.clear();
+        byte error = 0;
+        RequestEvents.Decode decode = new RequestEvents.Decode();
+        decode.begin();
+        boolean valid = vec.decodeRequest(in);
+        int reqId = valid ? Short.toUnsignedInt(vec.requestId()) : 0;
+        if (traced) RequestEvents.commit(decode, opCode, reqId, length, from);
+        if (valid) {
+            RequestEvents.Compute compute = new RequestEvents.Compute();
+            compute.begin();
+            vec.evaluate(Calculator.UDP_RULES);
+            if (traced) RequestEvents.commit(compute, opCode, reqId, length, from);
+        }
+        RequestEvents.Encode encode = new RequestEvents.Encode();
+        encode.begin();
+        if (valid) {
+            vec.encodeReply(out);
+        } else {
+            error = (byte) 127;
+            Response.encode(out, 0, error, (short) 0);
+        }
+        out.flip();
+        if (traced) RequestEvents.commit(encode, opCode, reqId, out.remaining(), from);
+        if (!valid) {
+            Log.error("Parse error: " + vec.error() + " (from " + from + ")");
+            Metrics.parseFailure();
+        }
+        if (log != null) {
+            RequestEvents.Logging logging = new RequestEvents.Logging();
+            logging.begin();
+            appendReceived(log, in, from, hex);
+            if (valid) {
+                log.append("\nRequestID=").append(reqId).append(" :: vector of ").append(vec.count()).append(" items");
+                for (int i = 0; i < vec.count(); i++) {
+                    log.append("\n  [").append(i).append("] ").append(vec.operand1(i)).append(' ')
+                            .append(Request.opNameForCode((byte) vec.opCode(i))).append(' ').append(vec.operand2(i))
+                            .append(" = ").append(vec.result(i));
+                }
             }
+            log.append("\nTX ").append(out.remaining()).append(" bytes");
+            if (hex) Hex.appendHex(log.append('\n'), out);
+            Log.debug(log.toString());
+            if (traced) RequestEvents.commit(logging, opCode, reqId, log.length(), from);
         }
+        Metrics.bytesOut(out.remaining());
+        Metrics.request(opCode, error, System.nanoTime() - t0);
+        return out;
     }
 }
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Multi-threaded ServerUDP mode.
+//
+// Where the OS supports SO_REUSEPORT (Linux 3.9+), N DatagramChannels are bound to the same port
+// and the kernel spreads incoming datagrams across them by flow hash; each channel has its own
+// thread doing receive/handle/send with no shared state. A single client therefore always lands
+// on the same shard, and throughput scales once there are several clients.
+//
+// Without SO_REUSEPORT one receiver thread reads the socket and hands each datagram to a pool of
+// N workers, which reply on the shared channel (DatagramChannel.send is thread-safe).
+//
+// With one thread this is ServerUDP's default single-socket server. Sockets are non-blocking and
+// a receiver only waits in its Selector once its socket is empty, so stopAccepting() can wake it
+// to answer what is queued and close.
+public class ShardedServerUDP implements ServerLifecycle {
+    private static final ThreadLocal<ServerUDP.Scratch> SCRATCH = ThreadLocal.withInitial(ServerUDP.Scratch::new);
+
+    private final int port;
+    private final int threads;
+    private final ExecutorService workers;
+    private final List<Selector> selectors = new ArrayList<>();
+    private final List<Thread> receivers = new ArrayList<>();
+    private volatile boolean stopping;
+
+    public ShardedServerUDP(int port, int threads) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be >= 1");
+        this.port = port;
+        this.threads = threads;
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    static boolean reusePortSupported() {
+        try (DatagramChannel ch = DatagramChannel.open()) {
+            return ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (threads == 1 || reusePortSupported()) {
+            startShards();
+        } else {
+            startWorkerPool();
+        }
+    }
+
+    private void startShards() throws IOException {
+        // Several shards need SO_REUSEPORT to share the port; a single one only for a handover
+        boolean reuse = threads > 1 || ServerLifecycle.reusePort();
+        for (int i = 0; i < threads; i++) {
+            DatagramChannel ch = ServerUDP.bind(port, reuse);
+            Selector sel = Selector.open();
+            selectors.add(sel);
+            Thread t = new Thread(() -> serveShard(ch, sel), "udp-shard-" + i);
+            receivers.add(t);
+            t.start();
+        }
+        Log.info("Server listening on port " + port
+                + (threads == 1 ? "" : " (" + threads + " SO_REUSEPORT shards)"));
+    }
+
+    private void serveShard(DatagramChannel ch, Selector selector) {
+        ByteBuffer in = ByteBuffer.allocateDirect(ServerUDP.MAX_DATAGRAM);
+        ServerUDP.Scratch scratch = new ServerUDP.Scratch();
+        try (DatagramChannel channel = ch; Selector sel = selector) {
+            SelectionKey key = channel.register(sel, SelectionKey.OP_READ);
+            while (true) {
+                in.clear();
+                InetSocketAddress from = ServerUDP.receive(channel, in);
+                if (from == null) {
+                    if (stopping) break; // every datagram queued on the port has been answered
+                    sel.select();
+                    sel.selectedKeys().clear();
+                    continue;
+                }
+                in.flip();
+                ServerUDP.send(key, ServerUDP.handle(in, from, scratch), from);
+            }
+        } catch (IOException e) {
+            if (!stopping) Log.error("Shard stopped: " + e.getMessage());
+        }
+    }
+
+    private void startWorkerPool() throws IOException {
+        DatagramChannel channel = ServerUDP.bind(port, ServerLifecycle.reusePort());
+        Selector sel = Selector.open();
+        selectors.add(sel);
+        Thread t = new Thread(() -> receiveForWorkers(channel, sel), "udp-receiver");
+        receivers.add(t);
+        t.start();
+        Log.info("Server listening on port " + port
+                + " (SO_REUSEPORT unavailable; 1 receiver + " + threads + " workers)");
+    }
+
+    private void receiveForWorkers(DatagramChannel ch, Selector selector) {
+        ByteBuffer in = ByteBuffer.allocateDirect(ServerUDP.MAX_DATAGRAM);
+        try (DatagramChannel channel = ch; Selector sel = selector) {
+            channel.register(sel, SelectionKey.OP_READ);
+            while (true) {
+                in.clear();
+                InetSocketAddress from = ServerUDP.receive(channel, in);
+                if (from == null) {
+                    if (stopping) break;
+                    sel.select();
+                    sel.selectedKeys().clear();
+                    continue;
+                }
+                in.flip();
+                // The receive buffer is reused immediately, so the hand-off to a worker needs a copy.
+                ByteBuffer data = ByteBuffer.allocate(in.remaining()).put(in).flip();
+                try {
+                    workers.execute(() -> {
+                        try {
+                            // Workers share the non-blocking channel, so a full send buffer drops the reply
+                            if (ServerUDP.send(channel, ServerUDP.handle(data, from, SCRATCH.get()), from) == 0) {
+                                Log.error("Send buffer full; reply to " + from + " dropped");
+                            }
+                        } catch (IOException e) {
+                            Log.error("Send failed: " + e.getMessage());
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Log.error("Dropping datagram: " + e.getMessage());
+                }
+            }
+            // Let the workers answer what was handed to them before the channel closes
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            if (!stopping) Log.error("Receiver stopped: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    // Each receiver answers what is already queued on its socket, then closes it; from then on
+    // the kernel delivers to the sockets still bound (a new instance's, in a handover).
+    @Override
+    public void stopAccepting() {
+        stopping = true;
+        for (Selector sel : selectors) sel.wakeup();
+    }
+
+    @Override
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        for (Thread t : receivers) {
+            long left = deadline - System.nanoTime();
+            if (left > 0) t.join(Math.max(1, left / 1_000_000L));
+            if (t.isAlive()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        stopping = true;
+        for (Thread t : receivers) t.interrupt(); // closes a channel still in use
+        workers.shutdownNow();
+    }
+}
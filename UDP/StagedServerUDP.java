@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+
+// Staged ServerUDP mode: one I/O thread owns the socket and does nothing but receive and send;
+// decode, logging, compute and encode (ServerUDP.handle) run on a pool of compute workers
+// (Common/StagedPipeline). A slow operation or a burst of console output then holds up only a
+// worker, never the socket, and compute spreads over as many cores as there are workers.
+//
+// Each datagram travels as a Datagram job holding its own receive and reply buffers; jobs are
+// recycled, so steady-state serving allocates nothing beyond what handle() itself does. When all
+// -Dcalc.stage.queue jobs are in flight the I/O thread stops receiving and lets the socket buffer
+// absorb the burst. Replies the send buffer cannot take yet wait for OP_WRITE, in order.
+//
+// Replies go out in completion order, which with more than one worker is not always arrival order;
+// every client matches replies by RequestID.
+public class StagedServerUDP implements ServerLifecycle {
+    private static final ThreadLocal<ServerUDP.Scratch> SCRATCH = ThreadLocal.withInitial(ServerUDP.Scratch::new);
+
+    private final int port;
+    private final StagedPipeline pipeline;
+    private StagedPipeline.Lane<Datagram> lane;
+    private DatagramChannel channel;
+    private Selector selector;
+    private Thread loop;
+    private volatile boolean stopping;
+
+    public StagedServerUDP(int port, int workers) {
+        this.port = port;
+        this.pipeline = new StagedPipeline(workers, "udp");
+    }
+
+    // One request: filled by the I/O thread, served by a worker, its reply sent by the I/O thread
+    private static final class Datagram extends StagedPipeline.Job {
+        final ByteBuffer in = ByteBuffer.allocateDirect(ServerUDP.MAX_DATAGRAM);
+        final ByteBuffer out = ByteBuffer.allocateDirect(Math.max(Response.LENGTH, VectorFrame.MAX_REPLY_LEN));
+        InetSocketAddress from;
+
+        @Override
+        protected void compute() {
+            out.clear();
+            out.put(ServerUDP.handle(in, from, SCRATCH.get())).flip();
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        channel = ServerUDP.bind(port, ServerLifecycle.reusePort());
+        selector = Selector.open();
+        lane = pipeline.lane(StagedPipeline.DEFAULT_CAPACITY, selector::wakeup);
+        pipeline.start();
+        loop = new Thread(this::serve, "udp-io");
+        loop.start();
+        Log.info("Server listening on port " + port + " (staged: 1 I/O thread, "
+                + pipeline.workers() + " compute workers)");
+    }
+
+    private void serve() {
+        try (DatagramChannel ch = channel; Selector sel = selector) {
+            run(ch, sel);
+        } catch (IOException e) {
+            if (!stopping) Log.error("Server stopped: " + e.getMessage());
+        }
+    }
+
+    private void run(DatagramChannel channel, Selector selector) throws IOException {
+        ArrayDeque<Datagram> free = new ArrayDeque<>();
+        ArrayDeque<Datagram> unsent = new ArrayDeque<>(); // replies waiting for send buffer room
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        boolean drained = false; // stopping, and the socket has been read empty
+
+        while (true) {
+            // Finished jobs: send their replies (in order behind any already waiting) and recycle
+            Datagram job;
+            while ((job = lane.poll()) != null) {
+                if (job.failed()) {
+                    free.push(job);
+                } else {
+                    unsent.add(job);
+                }
+            }
+            while (!unsent.isEmpty() && ServerUDP.send(channel, unsent.peek().out, unsent.peek().from) != 0) {
+                free.push(unsent.poll());
+            }
+
+            // New datagrams, as long as there is a job to carry each one
+            while (!lane.isFull() && !drained) {
+                job = free.isEmpty() ? new Datagram() : free.pop();
+                job.in.clear();
+                InetSocketAddress sender = ServerUDP.receive(channel, job.in);
+                if (sender == null) { // socket empty
+                    free.push(job);
+                    drained = stopping;
+                    break;
+                }
+                job.in.flip();
+                job.from = sender;
+                lane.submit(job);
+            }
+
+            // Stopping: leave once the socket is empty and every reply is out
+            if (drained && lane.inFlight() == 0 && unsent.isEmpty()) return;
+
+            // Read only while jobs are available, write only while replies are held up
+            key.interestOps((lane.isFull() || drained ? 0 : SelectionKey.OP_READ)
+                    | (unsent.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            if (lane.prepareToWait()) {
+                selector.select();
+                lane.doneWaiting();
+            } else {
+                selector.selectNow();
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    @Override
+    public void stopAccepting() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        loop.join(Math.max(1, timeoutMillis));
+        return !loop.isAlive();
+    }
+
+    @Override
+    public void close() {
+        stopping = true;
+        loop.interrupt(); // closes the channel if the loop is still in it
+        pipeline.stop();
+    }
+}